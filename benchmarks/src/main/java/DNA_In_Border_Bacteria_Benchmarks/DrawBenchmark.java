@@ -0,0 +1,77 @@
+package DNA_In_Border_Bacteria_Benchmarks;
+
+import DNA_In_Border_Bacteria_Tools.LabelObjects;
+import DNA_In_Border_Bacteria_Tools.Tools;
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Drawing bacteria over an image and saving the overlay as TIFF, in a temporary folder
+ * The labels buffer is reused, as by the overlay renderer threads
+ * @author Orion-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DrawBenchmark {
+
+    @Param({"1024", "2048"})
+    public int size;
+
+    @Param({"200", "2000"})
+    public int bacteria;
+
+    private LabelObjects bactObjects;
+    private ImagePlus img;
+    private Tools tools;
+    private File outDir;
+    private short[] labels;
+
+
+    @Setup
+    public void setup() throws IOException {
+        ShortProcessor mask = Fixtures.labels(size, size, bacteria, 1);
+        bactObjects = Fixtures.objects(mask);
+        img = new ImagePlus("dna", Fixtures.dapi(mask, 2).convertToShort(false));
+        tools = new Tools();
+        tools.setPixelSize(0.1);
+        outDir = Files.createTempDirectory("dnaBorderBench").toFile();
+        labels = new short[size * size];
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        File[] files = outDir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        outDir.delete();
+    }
+
+
+    @Benchmark
+    public void drawResults() throws IOException {
+        tools.drawResults(img, bactObjects, "_bacteria.tif", "bench", outDir.getPath() + File.separator, labels);
+    }
+}
@@ -0,0 +1,145 @@
+package DNA_In_Border_Bacteria_Benchmarks;
+
+import DNA_In_Border_Bacteria_Tools.LabelObjects;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import net.imagej.patcher.LegacyInjector;
+
+
+/**
+ * Synthetic images for benchmarks: bacteria label masks, DAPI-like images and Z-stacks
+ * All images are generated from a seed, so that every run measures the same pixels
+ * @author Orion-CIRB
+ */
+public class Fixtures {
+
+    // Let ImageJ 1.x run headless outside of Fiji
+    static {
+        LegacyInjector.preinit();
+    }
+
+    private static final int MARGIN = 8;
+
+
+    /**
+     * Label mask of nBacteria rod-shaped bacteria (capsules 8 to 25 px half-length, 4 to 6 px radius)
+     * with random positions and orientations, not touching each other nor the image borders
+     * Fewer bacteria are drawn if the image is too crowded
+     */
+    public static ShortProcessor labels(int width, int height, int nBacteria, long seed) {
+        Random random = new Random(seed);
+        short[] pixels = new short[width * height];
+        int label = 0;
+        for (int tries = 0; label < Math.min(nBacteria, 65535) && tries < nBacteria * 20; tries++) {
+            double halfLength = 8 + random.nextDouble() * 17;
+            double radius = 4 + random.nextDouble() * 2;
+            double angle = random.nextDouble() * Math.PI;
+            double dx = Math.cos(angle) * halfLength, dy = Math.sin(angle) * halfLength;
+            double extent = halfLength + radius + MARGIN;
+            if (width <= 2 * extent || height <= 2 * extent)
+                break;
+            double cx = extent + random.nextDouble() * (width - 2 * extent);
+            double cy = extent + random.nextDouble() * (height - 2 * extent);
+            int x0 = (int) (cx - extent), x1 = (int) (cx + extent), y0 = (int) (cy - extent), y1 = (int) (cy + extent);
+            // Keep 2 px between bacteria
+            if (!isFree(pixels, width, x0, x1, y0, y1, cx, cy, dx, dy, radius + 2))
+                continue;
+            label++;
+            for (int y = y0; y <= y1; y++)
+                for (int x = x0; x <= x1; x++)
+                    if (segmentDistance(x, y, cx, cy, dx, dy) <= radius)
+                        pixels[x + y * width] = (short) label;
+        }
+        return new ShortProcessor(width, height, pixels, null);
+    }
+
+
+    private static boolean isFree(short[] pixels, int width, int x0, int x1, int y0, int y1,
+            double cx, double cy, double dx, double dy, double radius) {
+        for (int y = y0; y <= y1; y++)
+            for (int x = x0; x <= x1; x++)
+                if (pixels[x + y * width] != 0 && segmentDistance(x, y, cx, cy, dx, dy) <= radius)
+                    return false;
+        return true;
+    }
+
+
+    /**
+     * Distance of (x, y) to the segment from (cx - dx, cy - dy) to (cx + dx, cy + dy)
+     */
+    private static double segmentDistance(double x, double y, double cx, double cy, double dx, double dy) {
+        double px = x - cx, py = y - cy;
+        double t = Math.max(-1, Math.min(1, (px * dx + py * dy) / (dx * dx + dy * dy)));
+        return Math.hypot(px - t * dx, py - t * dy);
+    }
+
+
+    /**
+     * DAPI-like image of the bacteria of a label mask: DNA brighter in the 2 px edges of the bacteria than inside,
+     * dim background, blurred and with Gaussian noise
+     */
+    public static FloatProcessor dapi(ShortProcessor labels, long seed) {
+        int width = labels.getWidth(), height = labels.getHeight();
+        short[] lab = (short[]) labels.getPixels();
+        float[] pixels = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int l = lab[x + y * width];
+                if (l == 0)
+                    pixels[x + y * width] = 100;
+                else
+                    pixels[x + y * width] = isEdge(lab, width, height, x, y, l, 2) ? 1200 : 400;
+            }
+        }
+        FloatProcessor ip = new FloatProcessor(width, height, pixels);
+        ip.blurGaussian(1);
+        addNoise(ip, 20, new Random(seed));
+        return ip;
+    }
+
+
+    private static boolean isEdge(short[] lab, int width, int height, int x, int y, int l, int d) {
+        for (int j = Math.max(0, y - d); j <= Math.min(height - 1, y + d); j++)
+            for (int i = Math.max(0, x - d); i <= Math.min(width - 1, x + d); i++)
+                if (lab[i + j * width] != l)
+                    return true;
+        return false;
+    }
+
+
+    private static void addNoise(FloatProcessor ip, double sd, Random random) {
+        float[] pixels = (float[]) ip.getPixels();
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (float) Math.max(0, pixels[i] + random.nextGaussian() * sd);
+    }
+
+
+    /**
+     * 16-bit Z-stack of a DAPI-like image, in focus at the middle slice and more blurred away from it
+     */
+    public static ImagePlus stack(int width, int height, int nSlices, int nBacteria, long seed) {
+        FloatProcessor sharp = dapi(labels(width, height, nBacteria, seed), seed);
+        Random random = new Random(seed + 1);
+        ImageStack stack = new ImageStack(width, height);
+        int focus = nSlices / 2;
+        for (int z = 0; z < nSlices; z++) {
+            FloatProcessor ip = (FloatProcessor) sharp.duplicate();
+            if (z != focus)
+                ip.blurGaussian(0.8 * Math.abs(z - focus));
+            addNoise(ip, 10, random);
+            stack.addSlice("Z_" + (z + 1), ip.convertToShort(false));
+        }
+        return new ImagePlus("stack", stack);
+    }
+
+
+    /**
+     * Bacteria of a label mask, as returned by Omnipose detection
+     */
+    public static LabelObjects objects(ShortProcessor labels) {
+        return LabelObjects.fromLabels((short[]) labels.getPixels(), labels.getWidth(), labels.getHeight());
+    }
+}
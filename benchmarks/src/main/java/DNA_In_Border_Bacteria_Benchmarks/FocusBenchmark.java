@@ -0,0 +1,62 @@
+package DNA_In_Border_Bacteria_Benchmarks;
+
+import DNA_In_Border_Bacteria_Tools.Find_focused_slices;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Focus scoring of a slice and selection of the focused slices of a stack
+ * @author Orion-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FocusBenchmark {
+
+    @Param({"1024", "2048"})
+    public int size;
+
+    @Param({"30"})
+    public int slices;
+
+    private ImagePlus stack;
+    private ImageProcessor slice;
+    private Find_focused_slices focus;
+
+
+    @Setup
+    public void setup() {
+        stack = Fixtures.stack(size, size, slices, size * size / 2000, 1);
+        slice = stack.getStack().getProcessor(slices / 2 + 1);
+        focus = new Find_focused_slices();
+        focus.setParams(80, 0, false, false);
+    }
+
+
+    @Benchmark
+    public double calVar() {
+        return focus.calVar(slice);
+    }
+
+
+    @Benchmark
+    public ImagePlus run() {
+        return focus.run(stack);
+    }
+}
@@ -0,0 +1,105 @@
+package DNA_In_Border_Bacteria_Benchmarks;
+
+import DNA_In_Border_Bacteria.Cellpose.CellposeSegmentImgPlusAdvanced;
+import DNA_In_Border_Bacteria.Cellpose.CellposeTaskSettings;
+import DNA_In_Border_Bacteria.Cellpose.CellposeWorker;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Import of Omnipose label masks, without Omnipose:
+ * - openMask: Cellpose mask file as written by Omnipose in file mode (8-bit when there are less than 256 bacteria)
+ * - worker: image sent to the persistent worker and mask read back, with the stub worker
+ *   (its thresholding is cheap next to the transfers)
+ * @author Orion-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MaskImportBenchmark {
+
+    @Param({"1024", "2048"})
+    public int size;
+
+    @Param({"200", "2000"})
+    public int bacteria;
+
+    private ShortProcessor labels;
+    private File maskFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        labels = Fixtures.labels(size, size, bacteria, 1);
+        ImagePlus mask = new ImagePlus("mask", labels.getStatistics().max < 256 ? labels.convertToByte(false) : labels);
+        maskFile = File.createTempFile("dnaBorderBench", "_cp_masks.tif");
+        new FileSaver(mask).saveAsTiff(maskFile.getPath());
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        maskFile.delete();
+    }
+
+
+    /**
+     * Stub worker, pixels and labels exchanged through a memory-mapped file or the pipe
+     */
+    @State(Scope.Benchmark)
+    public static class Worker {
+
+        @Param({"true", "false"})
+        public boolean sharedMemory;
+
+        private ImagePlus img;
+        private CellposeWorker worker;
+
+        @Setup(Level.Trial)
+        public void setup(MaskImportBenchmark bench) throws IOException {
+            img = new ImagePlus("bacteria", Fixtures.dapi(bench.labels, 2));
+            CellposeTaskSettings settings = new CellposeTaskSettings("stub", 1, 0, "");
+            settings.setEnvType("stub");
+            worker = new CellposeWorker(settings).setSharedMemory(sharedMemory);
+            worker.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            worker.close();
+        }
+    }
+
+
+    @Benchmark
+    public ImagePlus openMask() {
+        return CellposeSegmentImgPlusAdvanced.openMask(maskFile);
+    }
+
+
+    @Benchmark
+    public ImagePlus worker(Worker w) throws IOException {
+        return w.worker.segment(w.img);
+    }
+}
@@ -0,0 +1,81 @@
+package DNA_In_Border_Bacteria_Benchmarks;
+
+import DNA_In_Border_Bacteria_Tools.BacteriaMeasure;
+import DNA_In_Border_Bacteria_Tools.LabelObjects;
+import DNA_In_Border_Bacteria_Tools.ResultRow;
+import DNA_In_Border_Bacteria_Tools.Tools;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measurement of bacteria: the whole saveResults step, and the single-pass kernel alone
+ * (area, length, inside and edge intensities, which replaced the per-bacterium erosions)
+ * @author Orion-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MeasureBenchmark {
+
+    @Param({"1024", "2048"})
+    public int size;
+
+    @Param({"200", "2000"})
+    public int bacteria;
+
+    private ShortProcessor labels;
+    private int[] intLabels;
+    private int maxLabel;
+    private LabelObjects bactObjects;
+    private ImagePlus imgDna;
+    private Tools tools;
+
+
+    @Setup
+    public void setup() {
+        labels = Fixtures.labels(size, size, bacteria, 1);
+        maxLabel = (int) labels.getStatistics().max;
+        bactObjects = Fixtures.objects(labels);
+        intLabels = new int[size*size];
+        bactObjects.draw(intLabels);
+        imgDna = new ImagePlus("dna", Fixtures.dapi(labels, 2).convertToShort(false));
+        tools = new Tools();
+        tools.setPixelSize(0.1);
+    }
+
+
+    @Benchmark
+    public List<ResultRow> saveResults() {
+        List<ResultRow> rows = new ArrayList<>();
+        tools.saveResults(bactObjects, imgDna, "bench", 0, rows);
+        return rows;
+    }
+
+
+    @Benchmark
+    public BacteriaMeasure kernel() {
+        ImageProcessor ip = imgDna.getProcessor();
+        BacteriaMeasure measure = new BacteriaMeasure(intLabels, size, size, maxLabel);
+        measure.measure(ip, 4);
+        return measure;
+    }
+}
@@ -0,0 +1,59 @@
+package DNA_In_Border_Bacteria_Benchmarks;
+
+import DNA_In_Border_Bacteria_Tools.Tools;
+import ij.ImagePlus;
+import ij.plugin.ZProjector;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Z projection of the focused slices, average for bacteria and max for DNA
+ * @author Orion-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProjectionBenchmark {
+
+    @Param({"1024", "2048"})
+    public int size;
+
+    @Param({"10", "30"})
+    public int slices;
+
+    private ImagePlus stack;
+    private Tools tools;
+
+
+    @Setup
+    public void setup() {
+        stack = Fixtures.stack(size, size, slices, size * size / 2000, 1);
+        tools = new Tools();
+    }
+
+
+    @Benchmark
+    public ImagePlus average() {
+        return tools.doZProjection(stack, ZProjector.AVG_METHOD);
+    }
+
+
+    @Benchmark
+    public ImagePlus max() {
+        return tools.doZProjection(stack, ZProjector.MAX_METHOD);
+    }
+}
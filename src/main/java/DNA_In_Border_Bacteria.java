@@ -1,29 +1,14 @@
+import DNA_In_Border_Bacteria_Tools.BatchRunner;
 import DNA_In_Border_Bacteria_Tools.Tools;
 
 import ij.*;
 import ij.plugin.PlugIn;
-import ij.plugin.ZProjector;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
 import loci.formats.FormatException;
-import loci.formats.meta.IMetadata;
-import loci.formats.services.OMEXMLService;
-import loci.plugins.BF;
-import loci.plugins.util.ImageProcessorReader;
-import loci.plugins.in.ImporterOptions;
-import mcib3d.geom2.Objects3DIntPopulation;
-import org.apache.commons.io.FilenameUtils;
-import org.scijava.util.ArrayUtils;
 
 
 /**
@@ -36,8 +21,6 @@ public class DNA_In_Border_Bacteria implements PlugIn {
     
     Tools tools = new Tools();
     private String imageDir = "";
-    public String outDirResults = "";
-    public BufferedWriter results;
    
     
     public void run(String arg) {
@@ -51,41 +34,13 @@ public class DNA_In_Border_Bacteria implements PlugIn {
                 return;
             }   
             
-            // Find images with extension
-            String file_ext = tools.findImageType(new File(imageDir));
-            ArrayList<String> imageFiles = tools.findImages(imageDir, file_ext);
-            if (imageFiles.isEmpty()) {
-                IJ.showMessage("Error", "No images found with " + file_ext + " extension");
+            // Find images, calibration and channel names
+            BatchRunner runner = new BatchRunner(tools, imageDir);
+            String[] channels = runner.findImages();
+            if (channels == null) {
+                IJ.showMessage("Error", "No images found in " + imageDir);
                 return;
             }
-            
-            // Create output folder
-            outDirResults = imageDir + File.separator + "Results" + File.separator;
-            File outDir = new File(outDirResults);
-            if (!Files.exists(Paths.get(outDirResults))) {
-                outDir.mkdir();
-            }
-            String header = "Image name\tBacterium ID\tBacterium area (µm2)\tBacterium length (µm)\t" +
-                     "DNA mean intensity inside bacterium\tDNA mean intensity in bacterium edges\n";
-            FileWriter fwDistResults = new FileWriter(outDirResults + "results.xls", false);
-            results = new BufferedWriter(fwDistResults);
-            results.write(header);
-            results.flush();
-           
-            // Create OME-XML metadata store of the latest schema version
-            ServiceFactory factory;
-            factory = new ServiceFactory();
-            OMEXMLService service = factory.getInstance(OMEXMLService.class);
-            IMetadata meta = service.createOMEXMLMetadata();
-            ImageProcessorReader reader = new ImageProcessorReader();
-            reader.setMetadataStore(meta);
-            reader.setId(imageFiles.get(0));
-            
-            // Find image calibration
-            tools.findImageCalib(meta);
-            
-            // Find channel names
-            String[] channels = tools.findChannels(imageFiles.get(0), meta, reader);
 
             // Dialog box
             String[] chs = tools.dialog(channels);
@@ -94,48 +49,8 @@ public class DNA_In_Border_Bacteria implements PlugIn {
                 return;
             }
             
-            for (String f : imageFiles) {
-                reader.setId(f);
-                String rootName = FilenameUtils.getBaseName(f);
-                tools.print("--- ANALYZING IMAGE " + rootName + " ------");
-                
-                ImporterOptions options = new ImporterOptions();
-                options.setId(f);
-                options.setQuiet(true);
-                options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
-                options.setSplitChannels(true);
-                
-                // Open bacteria channel
-                int indexCh = ArrayUtils.indexOf(channels, chs[0]);
-                System.out.println("- Opening bacteria channel " + chs[0] + " -");
-                ImagePlus stackBact = BF.openImagePlus(options)[indexCh];
-                ImagePlus imgBact = tools.doZProjection(stackBact, ZProjector.AVG_METHOD);
-                tools.flush_close(stackBact);
-                
-                // Detect bacteria with Omnipose
-                tools.print("- Detecting bacteria -");
-                Objects3DIntPopulation bactPop = tools.omniposeDetection(imgBact);
-                System.out.println(bactPop.getNbObjects() + " bacteria found");
-                
-                // Open DNA channel
-                indexCh = ArrayUtils.indexOf(channels, chs[1]);
-                System.out.println("- Opening DNA channel " + chs[1] + " -");
-                ImagePlus stackDna = BF.openImagePlus(options)[indexCh];
-                ImagePlus imgDna = tools.doZProjection(stackDna, ZProjector.MAX_METHOD);
-                tools.flush_close(stackDna);
-                
-                // Save results
-                tools.print("- Saving results -");
-                Objects3DIntPopulation bactBorderPop = tools.saveResults(bactPop, imgDna, rootName, outDirResults, results);
-                
-                // Save images
-                tools.drawResults(imgBact, bactPop, "_bacteria.tif", rootName, outDirResults);
-                tools.drawResults(imgDna, bactBorderPop, "_edges.tif", rootName, outDirResults);
-                
-                tools.flush_close(imgBact);
-                tools.flush_close(imgDna);
-            }
-            results.close();
+            // Analyze images
+            runner.analyze(chs);
             tools.print("--- All done! ---");
             
         }   catch (IOException | FormatException | DependencyException | ServiceException ex) {
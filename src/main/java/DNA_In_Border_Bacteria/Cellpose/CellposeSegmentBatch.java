@@ -0,0 +1,89 @@
+package DNA_In_Border_Bacteria.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Segment many 2D images with a single Cellpose call
+ * Images are saved one after another in the dataset directory, which should be used by this batch only, Cellpose is run once
+ * over the whole directory, then each mask is read back by image name
+ */
+public class CellposeSegmentBatch {
+
+    CellposeTaskSettings settings;
+    File datasetDir;
+    List<String> names = new ArrayList<>();
+
+    public CellposeSegmentBatch(CellposeTaskSettings settings, File datasetDir) {
+        this.settings = settings;
+        this.datasetDir = datasetDir;
+        datasetDir.mkdirs();
+    }
+
+    /**
+     * Save image in the dataset directory
+     */
+    public void add(String name, ImagePlus imp) {
+        new FileSaver(imp).saveAsTiff(imageFile(name).toString());
+        names.add(name);
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Run Cellpose once over all saved images
+     */
+    public void run() throws Exception {
+        settings.setDatasetDir(datasetDir.toString());
+        System.out.println("Running Cellpose on " + names.size() + " images");
+        CellposeTask cellposeTask = new CellposeTask();
+        cellposeTask.setSettings(settings);
+        cellposeTask.run();
+    }
+
+    /**
+     * Reopen a saved image
+     */
+    public ImagePlus getImage(String name) {
+        return IJ.openImage(imageFile(name).toString());
+    }
+
+    /**
+     * Return 16-bit mask of an image and delete its files
+     */
+    public ImagePlus getMask(String name) {
+        File maskFile = new File(datasetDir, name + "_cp_masks.tif");
+        ImagePlus mask = CellposeSegmentImgPlusAdvanced.openMask(maskFile);
+        if (mask == null)
+            throw new IllegalStateException("No Cellpose mask found for " + name);
+        mask.setTitle(name + "-cellpose");
+
+        imageFile(name).delete();
+        maskFile.delete();
+        new File(datasetDir, name + "_cp_outlines.txt").delete();
+        return mask;
+    }
+
+    /**
+     * Delete the dataset directory
+     */
+    public void close() {
+        File[] contents = datasetDir.listFiles();
+        if (contents != null) {
+            for (File f : contents) {
+                f.delete();
+            }
+        }
+        datasetDir.delete();
+    }
+
+    private File imageFile(String name) {
+        return new File(datasetDir, name + ".tif");
+    }
+}
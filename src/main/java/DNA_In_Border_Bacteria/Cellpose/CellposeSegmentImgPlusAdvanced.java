@@ -10,6 +10,8 @@ import ij.plugin.Duplicator;
 import ij.process.ImageConverter;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,16 +31,16 @@ public class CellposeSegmentImgPlusAdvanced {
         Calibration cal = imp.getCalibration();
 
         // Create temp folder to temporarily save the current time-point of the imp
+        // A new folder is used for each call, so that several images can be segmented at the same time
         String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        cellposeTempDir.mkdir();
-
-        // When plugin crashes, image files can pile up in the temp folder, so we make sure to clear everything
-        File[] contents = cellposeTempDir.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                f.delete();
-            }
+        File cellposeTempDir;
+        try {
+            File cellposeTempRoot = new File(tempDir, "cellposeTemp");
+            cellposeTempRoot.mkdir();
+            cellposeTempDir = Files.createTempDirectory(cellposeTempRoot.toPath(), imp.getShortTitle()).toFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
 
         // Add temp folder to the settings
@@ -66,7 +68,8 @@ public class CellposeSegmentImgPlusAdvanced {
 
             for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
                 // Duplicate all channels and all z-slices for a defined time-point
-                ImagePlus t_imp = new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
+                // (a single time-point is saved as is)
+                ImagePlus t_imp = impFrames == 1 ? imp : new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
                 // Save the current t_imp into the cellposeTempDir
                 File t_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + ".tif");
                 FileSaver fs = new FileSaver(t_imp);
@@ -90,22 +93,13 @@ public class CellposeSegmentImgPlusAdvanced {
             // Open all the cellpose_mask and store each imp within an ArrayList
             ArrayList<ImagePlus> imps = new ArrayList<>(impFrames);
             for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                ImagePlus cellpose_t_imp = IJ.openImage(cellpose_masks_paths.get(t_idx - 1).toString());
-                // make sure to make a 16-bit imp
-                // (issue with time-lapse, first frame have less than 254 objects and latest have more)
-                if (cellpose_t_imp.getBitDepth() != 16) {
-                    if (cellpose_t_imp.getNSlices() > 1) {
-                        new ImageConverter(cellpose_t_imp).convertToGray16();
-                    } else {
-                        cellpose_t_imp.setProcessor(cellpose_t_imp.getProcessor().convertToShort(false));
-                    }
-                }
-                imps.add(cellpose_t_imp.duplicate());
+                ImagePlus cellpose_t_imp = openMask(cellpose_masks_paths.get(t_idx - 1));
+                imps.add(impFrames == 1 ? cellpose_t_imp : cellpose_t_imp.duplicate());
             }
             // Convert the ArrayList to an imp
             // https://stackoverflow.com/questions/9572795/convert-list-to-array-in-java
             ImagePlus[] impsArray = imps.toArray(new ImagePlus[0]);
-            cellpose_imp = Concatenator.run(impsArray);
+            cellpose_imp = impFrames == 1 ? impsArray[0] : Concatenator.run(impsArray);
             cellpose_imp.setCalibration(cal);
             cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
 
@@ -122,4 +116,22 @@ public class CellposeSegmentImgPlusAdvanced {
         }
         return cellpose_imp;
     }
+    
+    /**
+     * Open a Cellpose label mask as a 16-bit image
+     * (issue with time-lapse, first frame have less than 254 objects and latest have more)
+     */
+    public static ImagePlus openMask(File maskFile) {
+        ImagePlus mask = IJ.openImage(maskFile.toString());
+        if (mask == null)
+            return null;
+        if (mask.getBitDepth() != 16) {
+            if (mask.getNSlices() > 1) {
+                new ImageConverter(mask).convertToGray16();
+            } else {
+                mask.setProcessor(mask.getProcessor().convertToShort(false));
+            }
+        }
+        return mask;
+    }
 }
\ No newline at end of file
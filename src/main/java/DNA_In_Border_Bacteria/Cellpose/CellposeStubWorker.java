@@ -0,0 +1,123 @@
+package DNA_In_Border_Bacteria.Cellpose;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stand-in for omnipose_worker.py speaking the same protocol, used with envType "stub"
+ * to run the worker path without a conda environment
+ * Objects are the 4-connected components of pixels brighter than the image mean
+ */
+public class CellposeStubWorker {
+
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in, 1 << 16));
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        write(out, "READY");
+
+        for (String line = readLine(in); line != null; line = readLine(in)) {
+            String[] cmd = line.trim().split(" ", 4);
+            if (cmd[0].isEmpty())
+                continue;
+            switch (cmd[0]) {
+                case "QUIT" :
+                    return;
+                case "PING" :
+                    write(out, "PONG");
+                    break;
+                case "SEGMENT" :
+                    int width = Integer.parseInt(cmd[1]);
+                    int height = Integer.parseInt(cmd[2]);
+                    byte[] buf = new byte[width * height * 4];
+                    in.readFully(buf);
+                    float[] pixels = new float[width * height];
+                    ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(pixels);
+                    short[] labels = label(pixels, width, height);
+                    ByteBuffer mask = ByteBuffer.allocate(labels.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+                    mask.asShortBuffer().put(labels);
+                    out.write(("MASK " + width + " " + height + "\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(mask.array());
+                    out.flush();
+                    break;
+                case "SEGMENTMAP" :
+                    width = Integer.parseInt(cmd[1]);
+                    height = Integer.parseInt(cmd[2]);
+                    try (RandomAccessFile file = new RandomAccessFile(cmd[3], "rw")) {
+                        MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, width * height * 4L);
+                        map.order(ByteOrder.LITTLE_ENDIAN);
+                        pixels = new float[width * height];
+                        map.asFloatBuffer().get(pixels);
+                        map.asShortBuffer().put(label(pixels, width, height));
+                        map.force();
+                    }
+                    write(out, "MASKMAP " + width + " " + height);
+                    break;
+                default :
+                    write(out, "ERROR unknown command " + cmd[0]);
+            }
+        }
+    }
+
+
+    /**
+     * Label 4-connected components above the mean intensity
+     */
+    static short[] label(float[] pixels, int width, int height) {
+        double mean = 0;
+        for (float v : pixels)
+            mean += v;
+        mean /= pixels.length;
+
+        short[] labels = new short[pixels.length];
+        int[] queue = new int[pixels.length];
+        int label = 0;
+        for (int start = 0; start < pixels.length; start++) {
+            if (pixels[start] <= mean || labels[start] != 0 || label == 65535)
+                continue;
+            label++;
+            int head = 0, tail = 0;
+            queue[tail++] = start;
+            labels[start] = (short) label;
+            while (head < tail) {
+                int p = queue[head++];
+                int x = p % width, y = p / width;
+                int[] neighbours = {x > 0 ? p-1 : -1, x < width-1 ? p+1 : -1, y > 0 ? p-width : -1, y < height-1 ? p+width : -1};
+                for (int n : neighbours) {
+                    if (n >= 0 && labels[n] == 0 && pixels[n] > mean) {
+                        labels[n] = (short) label;
+                        queue[tail++] = n;
+                    }
+                }
+            }
+        }
+        return labels;
+    }
+
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b == -1)
+                return line.size() == 0 ? null : line.toString("UTF-8");
+            line.write(b);
+        }
+        return line.toString("UTF-8");
+    }
+
+
+    private static void write(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
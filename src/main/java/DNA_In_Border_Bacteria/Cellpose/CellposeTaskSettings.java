@@ -134,5 +134,17 @@ public class CellposeTaskSettings {
         this.verbose = verbose;
         return this;
     }
+    
+    /**
+     * Settings that change the masks, as a single string
+     * (dataset directory and GPU use are left out, conda and venv environments give the same masks,
+     * masks of the stub worker are kept apart from real Omnipose ones)
+     */
+    public String getCacheKey() {
+        return "model=" + model + ";ch1=" + ch1 + ";ch2=" + ch2 + ";diameter=" + diameter + ";flow_threshold=" + flow_threshold
+                + ";cellprob_threshold=" + cellprob_threshold + ";stitch_threshold=" + stitch_threshold + ";version=" + version
+                + ";use3D=" + use3D + ";fast=" + useFastMode + ";resample=" + useResample + ";omni=" + omni
+                + ";invert=" + invert + ";cluster=" + cluster + ";mxnet=" + useMxnet + (envType.equals("stub") ? ";env=stub" : "");
+    }
        
 }
@@ -0,0 +1,424 @@
+package DNA_In_Border_Bacteria.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static java.io.File.separatorChar;
+
+/**
+ * Long-lived Omnipose process: the model is loaded once and reused for every image
+ * Commands are sent on stdin, answers read on stdout (see omnipose_worker.py for the protocol)
+ * If the process dies, it is restarted up to maxRestarts times in a row and the request is sent again
+ * A worker not answering a request in time (segmentTimeout per megapixel) is killed and restarted the same way
+ * Pixels and labels are exchanged through a memory-mapped file shared with the worker (SEGMENTMAP),
+ * or written on the pipe itself (SEGMENT) if the file can't be mapped
+ */
+public class CellposeWorker implements Closeable {
+
+    CellposeTaskSettings settings;
+    int maxRestarts = 2;
+    long startTimeout = 600000;
+    long pingTimeout = 10000;
+    // ms per megapixel of the image to segment, for at least one megapixel
+    long segmentTimeout = 120000;
+    boolean sharedMemory = true;
+
+    // Package-private for tests
+    Process process;
+    private OutputStream toWorker;
+    private InputStream fromWorker;
+    private int restarts = 0;
+
+    // Reused between requests
+    private byte[] pipeBuffer = new byte[0];
+    private File mapFile = null;
+    private RandomAccessFile mapAccess = null;
+    private MappedByteBuffer map = null;
+
+    public CellposeWorker(CellposeTaskSettings settings) {
+        this.settings = settings;
+    }
+
+    public CellposeWorker setMaxRestarts(int maxRestarts) {
+        this.maxRestarts = maxRestarts;
+        return this;
+    }
+
+    public CellposeWorker setStartTimeout(long startTimeout) {
+        this.startTimeout = startTimeout;
+        return this;
+    }
+
+    public CellposeWorker setSegmentTimeout(long segmentTimeout) {
+        this.segmentTimeout = segmentTimeout;
+        return this;
+    }
+
+    public CellposeWorker setSharedMemory(boolean sharedMemory) {
+        this.sharedMemory = sharedMemory;
+        return this;
+    }
+
+
+    /**
+     * Start the worker and wait until the model is loaded
+     */
+    public synchronized void start() throws IOException {
+        List<String> cmd = command();
+        System.out.println(cmd.toString().replace(",", ""));
+        process = new ProcessBuilder(cmd).start();
+        toWorker = new BufferedOutputStream(process.getOutputStream(), 1 << 16);
+        fromWorker = new BufferedInputStream(process.getInputStream(), 1 << 16);
+
+        // Relay worker logs to the console
+        Process p = process;
+        Thread t = new Thread("omnipose-worker-" + p.hashCode()) {
+            @Override
+            public void run() {
+                BufferedReader stdErr = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+                try {
+                    for (String line = stdErr.readLine(); line != null; line = stdErr.readLine())
+                        System.out.println(line);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+
+        String line = readLine(startTimeout);
+        if (!line.equals("READY")) {
+            close();
+            throw new IOException("Omnipose worker did not start: " + line);
+        }
+        System.out.println("Omnipose worker ready, model " + settings.model + " loaded");
+    }
+
+
+    /**
+     * Health check: true if the worker is running and answers a PING
+     */
+    public synchronized boolean isAlive() {
+        if (process == null || !process.isAlive())
+            return false;
+        try {
+            sendCommand("PING");
+            return readLine(pingTimeout).equals("PONG");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * True if the worker process is running, without asking it anything
+     */
+    public synchronized boolean isRunning() {
+        return process != null && process.isAlive();
+    }
+
+
+    /**
+     * Segment a 2D image and return its 16-bit label mask
+     */
+    public synchronized ImagePlus segment(ImagePlus imp) throws IOException {
+        if (process == null)
+            start();
+        while (true) {
+            try {
+                ImagePlus mask = request(imp);
+                // Restarts are counted between successful requests, not over the whole run
+                restarts = 0;
+                return mask;
+            } catch (IOException e) {
+                // A worker answering with an error is alive, there is nothing to restart
+                if (process.isAlive() || restarts >= maxRestarts)
+                    throw e;
+                restarts++;
+                System.out.println("Omnipose worker stopped (" + e.getMessage() + "), restarting " + restarts + "/" + maxRestarts);
+                close();
+                start();
+            }
+        }
+    }
+
+
+    private ImagePlus request(ImagePlus imp) throws IOException {
+        ImageProcessor ip = imp.getProcessor();
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int size = width * height;
+        long timeout = (long) (segmentTimeout * Math.max(1, size / 1e6));
+
+        short[] labels = new short[size];
+        ByteBuffer shared = sharedMemory ? mapBuffer(size * 4L) : null;
+        if (shared != null) {
+            // Worker reads pixels from the mapped file and writes labels over them
+            putPixels(ip, shared);
+            sendCommand("SEGMENTMAP " + width + " " + height + " " + mapFile.getPath());
+            readAnswer("MASKMAP", width, height, timeout);
+            shared.clear();
+            shared.asShortBuffer().get(labels);
+        } else {
+            if (pipeBuffer.length < size * 4)
+                pipeBuffer = new byte[size * 4];
+            ByteBuffer pixels = ByteBuffer.wrap(pipeBuffer, 0, size * 4).order(ByteOrder.LITTLE_ENDIAN);
+            putPixels(ip, pixels);
+            sendCommand("SEGMENT " + width + " " + height);
+            toWorker.write(pipeBuffer, 0, size * 4);
+            toWorker.flush();
+            readAnswer("MASK", width, height, timeout);
+            readFully(pipeBuffer, size * 2);
+            ByteBuffer.wrap(pipeBuffer, 0, size * 2).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(labels);
+        }
+
+        ImagePlus mask = new ImagePlus(imp.getShortTitle() + "-cellpose", new ShortProcessor(width, height, labels, null));
+        mask.setCalibration(imp.getCalibration());
+        return mask;
+    }
+
+
+    /**
+     * Write pixels as little-endian float32, straight from the image pixel array
+     */
+    private static void putPixels(ImageProcessor ip, ByteBuffer buf) {
+        Object pixels = ip.getPixels();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (pixels instanceof short[]) {
+            for (short v : (short[]) pixels)
+                buf.putFloat(v & 0xffff);
+        } else if (pixels instanceof byte[]) {
+            for (byte v : (byte[]) pixels)
+                buf.putFloat(v & 0xff);
+        } else if (pixels instanceof float[]) {
+            for (float v : (float[]) pixels)
+                buf.putFloat(v);
+        } else {
+            for (int i = 0; i < ip.getPixelCount(); i++)
+                buf.putFloat(ip.getf(i));
+        }
+    }
+
+
+    private void readAnswer(String expected, int width, int height, long timeout) throws IOException {
+        String answer = readLine(timeout);
+        if (!answer.equals(expected + " " + width + " " + height))
+            throw new IOException("Omnipose worker error: " + answer);
+    }
+
+
+    /**
+     * Memory-mapped exchange file of at least size bytes, positioned at 0
+     * Return null (pipe transfer) if the file can't be mapped
+     */
+    private ByteBuffer mapBuffer(long size) {
+        try {
+            if (map == null || map.capacity() < size) {
+                if (mapAccess == null) {
+                    mapFile = File.createTempFile("omnipose_worker", ".buf", new File(IJ.getDirectory("Temp")));
+                    mapFile.deleteOnExit();
+                    mapAccess = new RandomAccessFile(mapFile, "rw");
+                }
+                mapAccess.setLength(size);
+                map = mapAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            map.clear();
+            return map.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            System.out.println("Can't map Omnipose exchange file (" + e.getMessage() + "), sending images on the pipe");
+            sharedMemory = false;
+            releaseMap();
+            return null;
+        }
+    }
+
+
+    private void releaseMap() {
+        map = null;
+        if (mapAccess != null) {
+            try {
+                mapAccess.close();
+            } catch (IOException e) {
+                // nothing to release
+            }
+            mapAccess = null;
+        }
+        if (mapFile != null) {
+            mapFile.delete();
+            mapFile = null;
+        }
+    }
+
+
+    /**
+     * Ask the worker to quit and release the process
+     */
+    @Override
+    public synchronized void close() {
+        if (process == null)
+            return;
+        try {
+            if (process.isAlive()) {
+                sendCommand("QUIT");
+                toWorker.close();
+            }
+        } catch (IOException e) {
+            // worker already gone
+        }
+        try {
+            process.waitFor(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        process.destroyForcibly();
+        process = null;
+        releaseMap();
+    }
+
+
+    private List<String> command() throws IOException {
+        List<String> cmd = new ArrayList<>();
+        if (settings.envType.equals("stub")) {
+            // Java stand-in speaking the same protocol, no conda environment needed
+            String classPath;
+            try {
+                classPath = new File(CellposeStubWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+            cmd.add(System.getProperty("java.home") + separatorChar + "bin" + separatorChar + "java");
+            cmd.add("-cp");
+            cmd.add(classPath);
+            cmd.add(CellposeStubWorker.class.getName());
+            return cmd;
+        }
+        if (!settings.envType.equals("conda"))
+            throw new UnsupportedOperationException("Omnipose worker only supports conda environments");
+
+        String python = IJ.isWindows() ? settings.cellposeEnvDirectory + separatorChar + "python.exe" :
+                settings.cellposeEnvDirectory + separatorChar + "bin" + separatorChar + "python";
+        cmd.add(python);
+        cmd.add("-u");
+        cmd.add(workerScript().getPath());
+        cmd.add("--pretrained_model");
+        cmd.add(settings.model);
+        cmd.add("--chan");
+        cmd.add("" + settings.ch1);
+        cmd.add("--chan2");
+        cmd.add("" + Math.max(settings.ch2, 0));
+        cmd.add("--diameter");
+        cmd.add("" + settings.diameter);
+        cmd.add("--flow_threshold");
+        cmd.add("" + settings.flow_threshold);
+        cmd.add("--mask_threshold");
+        cmd.add("" + settings.cellprob_threshold);
+        cmd.add("--version");
+        cmd.add(settings.version);
+        if (settings.omni)
+            cmd.add("--omni");
+        if (settings.cluster)
+            cmd.add("--cluster");
+        if (settings.useGpu)
+            cmd.add("--use_gpu");
+        return cmd;
+    }
+
+
+    /**
+     * Extract the Python worker script from the plugin jar
+     */
+    private File workerScript() throws IOException {
+        File script = new File(IJ.getDirectory("Temp"), "omnipose_worker.py");
+        try (InputStream is = CellposeWorker.class.getResourceAsStream("/omnipose_worker.py")) {
+            if (is == null)
+                throw new IOException("omnipose_worker.py not found in plugin resources");
+            Files.copy(is, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return script;
+    }
+
+
+    private void sendCommand(String cmd) throws IOException {
+        toWorker.write((cmd + "\n").getBytes(StandardCharsets.UTF_8));
+        toWorker.flush();
+    }
+
+
+    /**
+     * Read one protocol line, waiting at most timeout ms (0 = no limit)
+     * A worker not answering in time is killed, so that it can be restarted
+     */
+    private String readLine(long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            if (timeout > 0) {
+                while (fromWorker.available() == 0) {
+                    if (!process.isAlive() && fromWorker.available() == 0)
+                        throw new EOFException("Omnipose worker exited with value " + process.exitValue());
+                    if (System.currentTimeMillis() > deadline) {
+                        kill();
+                        throw new IOException("Omnipose worker did not answer within " + timeout + " ms");
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for Omnipose worker");
+                    }
+                }
+            }
+            int b = fromWorker.read();
+            if (b == -1)
+                throw new EOFException("Omnipose worker closed its output");
+            if (b == '\n')
+                return line.toString("US-ASCII").trim();
+            line.write(b);
+        }
+    }
+
+
+    private void kill() {
+        try {
+            process.destroyForcibly().waitFor(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void readFully(byte[] buf, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            int r = fromWorker.read(buf, n, length - n);
+            if (r == -1)
+                throw new EOFException("Omnipose worker closed its output");
+            n += r;
+        }
+    }
+}
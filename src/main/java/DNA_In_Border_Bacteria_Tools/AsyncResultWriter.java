@@ -0,0 +1,135 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Result sink writing rows on its own thread, so that measurement threads never wait for the disk
+ * Rows of each image are queued in a bounded buffer (callers wait only when it is full) and written by
+ * a single thread to the wrapped sinks. These are flushed when flushRows rows are pending, when the oldest
+ * pending row is flushMillis old, and at close; flushes happen between images, so that the files always hold whole images
+ * @author Orion-CIRB
+ */
+public class AsyncResultWriter implements ResultSink {
+
+    private static final List<ResultRow> END = new ArrayList<>();
+
+    private final ResultSink[] sinks;
+    private final BlockingQueue<List<ResultRow>> queue;
+    private final int flushRows;
+    private final long flushMillis;
+    private final Thread thread;
+    private volatile IOException error = null;
+    private boolean closed = false;
+
+
+    public AsyncResultWriter(int queueSize, int flushRows, long flushMillis, ResultSink... sinks) {
+        this.sinks = sinks;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.flushRows = flushRows;
+        this.flushMillis = flushMillis;
+        thread = new Thread(this::drain, "dna-border-results");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    private void drain() {
+        int pending = 0;
+        long oldest = 0;
+        try {
+            while (true) {
+                long wait = pending == 0 ? Long.MAX_VALUE : Math.max(0, oldest + flushMillis - System.currentTimeMillis());
+                List<ResultRow> rows = pending == 0 ? queue.take() : queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (rows == END)
+                    break;
+                if (rows != null) {
+                    if (pending == 0)
+                        oldest = System.currentTimeMillis();
+                    for (ResultSink sink : sinks)
+                        sink.write(rows);
+                    pending += rows.size();
+                }
+                // Rows == null: flushMillis elapsed
+                if (pending > 0 && (rows == null || pending >= flushRows || System.currentTimeMillis() - oldest >= flushMillis)) {
+                    for (ResultSink sink : sinks)
+                        sink.flush();
+                    pending = 0;
+                }
+            }
+        } catch (IOException ex) {
+            error = ex;
+            // Keep taking rows so that producers are not blocked
+            try {
+                while (queue.take() != END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void checkError() throws IOException {
+        if (error != null)
+            throw new IOException("Results could not be written", error);
+    }
+
+
+    /**
+     * Queue rows of an image
+     */
+    @Override
+    public void write(List<ResultRow> rows) throws IOException {
+        checkError();
+        try {
+            queue.put(new ArrayList<>(rows));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queuing results", ex);
+        }
+    }
+
+
+    /**
+     * Flushes are done by the writer thread
+     */
+    @Override
+    public void flush() throws IOException {
+        checkError();
+    }
+
+
+    /**
+     * Write all queued rows, flush and close the sinks
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        IOException closing = null;
+        for (ResultSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException ex) {
+                closing = ex;
+            }
+        }
+        checkError();
+        if (closing != null)
+            throw closing;
+    }
+}
@@ -0,0 +1,251 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+
+/**
+ * Measure all bacteria of a 2D label image in a single walk over their pixels:
+ * area, inside/edge classification after erosion, DNA intensity inside and in edges, and Feret diameter
+ * A pixel is inside its bacterium if the erosion disk centered on it only covers pixels of the same bacterium,
+ * as with a FastFilters3D MIN filter on the bacterium label image. This is read from a distance map of all labels
+ * (squared distance of each pixel to the nearest pixel of another label or out of the image), computed in linear time
+ * @author Orion-CIRB
+ */
+public class BacteriaMeasure {
+
+    private final int[] labels;
+    private final int width;
+    private final int height;
+
+    // Measurements indexed by label
+    public final int[] area;
+    public final int[] insideArea;
+    public final double[] insideSum;
+    public final double[] borderSum;
+    public final double[] feret;
+
+    // Edges of bacteria having an inside, labelled as their bacterium
+    public final int[] borderLabels;
+
+
+    public BacteriaMeasure(int[] labels, int width, int height, int maxLabel) {
+        this.labels = labels;
+        this.width = width;
+        this.height = height;
+        area = new int[maxLabel+1];
+        insideArea = new int[maxLabel+1];
+        insideSum = new double[maxLabel+1];
+        borderSum = new double[maxLabel+1];
+        feret = new double[maxLabel+1];
+        borderLabels = new int[labels.length];
+    }
+
+
+    /**
+     * Measure bacteria in intensity image
+     * @param radius erosion radius in pixels
+     */
+    public void measure(ImageProcessor intensity, float radius) {
+        double r2 = (double) radius*radius;
+        double[] dist = distanceMap();
+        boolean[] border = new boolean[labels.length];
+
+        // Row run ends of each bacterium: its convex hull vertices are among them
+        int maxLabel = area.length - 1;
+        int[][] hullPoints = new int[maxLabel+1][];
+        int[] nbPoints = new int[maxLabel+1];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0, i = y*width; x < width; x++, i++) {
+                int label = labels[i];
+                if (label == 0)
+                    continue;
+                area[label]++;
+                boolean runStart = x == 0 || labels[i-1] != labels[i];
+                boolean runEnd = x == width-1 || labels[i+1] != labels[i];
+                if (runStart || runEnd)
+                    nbPoints[label] = addPoint(hullPoints, nbPoints[label], label, x, y);
+
+                double value = intensity.getf(i);
+                if (dist[i] / r2 > 1.0) {
+                    insideArea[label]++;
+                    insideSum[label] += value;
+                } else {
+                    border[i] = true;
+                    borderSum[label] += value;
+                }
+            }
+        }
+
+        for (int label = 1; label <= maxLabel; label++)
+            if (nbPoints[label] > 0)
+                feret[label] = feretDiameter(hullPoints[label], nbPoints[label]);
+
+        // Keep edges of bacteria having an inside
+        for (int i = 0; i < labels.length; i++)
+            if (border[i] && insideArea[labels[i]] > 0)
+                borderLabels[i] = labels[i];
+    }
+
+
+    /**
+     * Squared Euclidean distance of each labelled pixel to the nearest pixel with another label,
+     * the image being surrounded by background
+     * Rows first, then each vertical run of a label with a lower envelope of parabolas (Felzenszwalb & Huttenlocher)
+     */
+    double[] distanceMap() {
+        double[] dist = new double[labels.length];
+        // Horizontal distance to the nearest other label in the row
+        for (int y = 0; y < height; y++) {
+            int row = y*width;
+            int last = -1;
+            for (int x = 0; x < width; x++) {
+                if (x > 0 && labels[row+x] != labels[row+x-1])
+                    last = x - 1;
+                dist[row+x] = x - last;
+            }
+            last = width;
+            for (int x = width-1; x >= 0; x--) {
+                if (x < width-1 && labels[row+x] != labels[row+x+1])
+                    last = x + 1;
+                double d = Math.min(dist[row+x], last - x);
+                dist[row+x] = d*d;
+            }
+        }
+
+        // Vertical runs: pixels above and below a run are at distance 0 of another label
+        double[] f = new double[height+2];
+        double[] d = new double[height+2];
+        double[] z = new double[height+3];
+        int[] v = new int[height+2];
+        for (int x = 0; x < width; x++) {
+            int start = 0;
+            while (start < height) {
+                int label = labels[start*width + x];
+                int end = start;
+                while (end+1 < height && labels[(end+1)*width + x] == label)
+                    end++;
+                if (label != 0) {
+                    int n = end - start + 3;
+                    f[0] = 0;
+                    f[n-1] = 0;
+                    for (int k = 1; k < n-1; k++)
+                        f[k] = dist[(start+k-1)*width + x];
+                    lowerEnvelope(f, n, d, v, z);
+                    for (int k = 1; k < n-1; k++)
+                        dist[(start+k-1)*width + x] = d[k];
+                }
+                start = end + 1;
+            }
+        }
+        return dist;
+    }
+
+
+    /**
+     * 1D squared distance transform of sampled function f over n points
+     */
+    private static void lowerEnvelope(double[] f, int n, double[] d, int[] v, double[] z) {
+        int k = 0;
+        v[0] = 0;
+        z[0] = Double.NEGATIVE_INFINITY;
+        z[1] = Double.POSITIVE_INFINITY;
+        for (int q = 1; q < n; q++) {
+            double s = ((f[q] + q*q) - (f[v[k]] + v[k]*v[k])) / (2.0*q - 2.0*v[k]);
+            while (s <= z[k]) {
+                k--;
+                s = ((f[q] + q*q) - (f[v[k]] + v[k]*v[k])) / (2.0*q - 2.0*v[k]);
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k+1] = Double.POSITIVE_INFINITY;
+        }
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (z[k+1] < q)
+                k++;
+            d[q] = (q - v[k])*(q - v[k]) + f[v[k]];
+        }
+    }
+
+
+    private int addPoint(int[][] points, int n, int label, int x, int y) {
+        if (points[label] == null)
+            points[label] = new int[16];
+        else if (2*n+2 > points[label].length)
+            points[label] = Arrays.copyOf(points[label], 2*points[label].length);
+        points[label][2*n] = x;
+        points[label][2*n+1] = y;
+        return n+1;
+    }
+
+
+    /**
+     * Largest distance between pixel centers, searched on the convex hull
+     */
+    static double feretDiameter(int[] points, int n) {
+        int[] hull = convexHull(points, n);
+        long max = 0;
+        for (int i = 0; i < hull.length; i += 2) {
+            for (int j = i+2; j < hull.length; j += 2) {
+                long dx = hull[i] - hull[j];
+                long dy = hull[i+1] - hull[j+1];
+                max = Math.max(max, dx*dx + dy*dy);
+            }
+        }
+        return Math.sqrt(max);
+    }
+
+
+    /**
+     * Convex hull of points (x0, y0, x1, y1...) with Andrew's monotone chain
+     */
+    static int[] convexHull(int[] points, int n) {
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> points[2*a] != points[2*b] ? Integer.compare(points[2*a], points[2*b]) : Integer.compare(points[2*a+1], points[2*b+1]));
+        if (n < 3) {
+            int[] hull = new int[2*n];
+            for (int i = 0; i < n; i++) {
+                hull[2*i] = points[2*order[i]];
+                hull[2*i+1] = points[2*order[i]+1];
+            }
+            return hull;
+        }
+        int[] hull = new int[4*n];
+        int k = 0;
+        // Lower hull
+        for (int m = 0; m < n; m++) {
+            int p = order[m];
+            while (k >= 2 && cross(hull, k, points[2*p], points[2*p+1]) <= 0)
+                k--;
+            hull[2*k] = points[2*p];
+            hull[2*k+1] = points[2*p+1];
+            k++;
+        }
+        // Upper hull
+        for (int m = n-2, t = k+1; m >= 0; m--) {
+            int p = order[m];
+            while (k >= t && cross(hull, k, points[2*p], points[2*p+1]) <= 0)
+                k--;
+            hull[2*k] = points[2*p];
+            hull[2*k+1] = points[2*p+1];
+            k++;
+        }
+        // Last point is the first one
+        return Arrays.copyOf(hull, 2*(k-1));
+    }
+
+
+    /**
+     * Cross product of (last hull point - previous one) and (b - previous one)
+     */
+    private static long cross(int[] hull, int k, long bx, long by) {
+        long ox = hull[2*(k-2)], oy = hull[2*(k-2)+1];
+        long ax = hull[2*(k-1)], ay = hull[2*(k-1)+1];
+        return (ax - ox)*(by - oy) - (ay - oy)*(bx - ox);
+    }
+}
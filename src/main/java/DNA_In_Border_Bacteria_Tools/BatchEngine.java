@@ -0,0 +1,444 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.plugin.ZProjector;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Process images of the batch on several threads
+ * Each thread opens images with its own reader, and the number of images decoded at the same time
+ * is limited by the memory they need. Results are written in image order.
+ * @author Orion-CIRB
+ */
+public class BatchEngine {
+    
+    private final Tools tools;
+    private final int nThreads;
+    
+    // Memory admission, in MB
+    private final int memoryBudget;
+    private final Semaphore memory;
+    
+    private final List<ImageProcessorReader> readers = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<ImageProcessorReader> reader;
+    
+    private String[] chNames;
+    private int[] chIndexes;
+    private String outDir;
+    private OrderedResultsWriter results;
+    private RunManifest manifest = null;
+    private RunMetrics metrics = null;
+    private boolean frames = false;
+    private OverlayRenderer overlays;
+    // Threads segmenting tiles of large images
+    private ExecutorService tiles = null;
+    private final AtomicInteger failures = new AtomicInteger();
+    
+    
+    public BatchEngine(Tools tools, int nThreads) {
+        this.tools = tools;
+        this.nThreads = nThreads;
+        memoryBudget = (int) Math.max(1, Runtime.getRuntime().maxMemory() * 0.6 / (1 << 20));
+        memory = new Semaphore(memoryBudget, true);
+        reader = ThreadLocal.withInitial(() -> {
+            ImageProcessorReader r = tools.newReader();
+            readers.add(r);
+            return r;
+        });
+    }
+    
+    
+    /**
+     * Record finished images in a manifest and skip those already done
+     */
+    public void setManifest(RunManifest manifest) {
+        this.manifest = manifest;
+    }
+    
+    
+    /**
+     * Record time and resources spent on each image
+     */
+    public void setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    
+    /**
+     * Write the frame of each result row, for time-lapse runs
+     */
+    public void setFrames(boolean frames) {
+        this.frames = frames;
+    }
+    
+    
+    /**
+     * Analyze all images, series and frames of a same file being analyzed concurrently like separate files
+     * @param chNames names of bacteria and DNA channels
+     * @param chIndexes indexes of bacteria and DNA channels, for series without channels of these names
+     */
+    public void run(List<ImageJob> allJobs, String[] chNames, int[] chIndexes, String outDir, OrderedResultsWriter results) throws IOException {
+        this.chNames = chNames;
+        this.chIndexes = chIndexes;
+        this.outDir = outDir;
+        this.results = results;
+        tools.print("Processing " + allJobs.size() + " images with " + nThreads + " threads (" + memoryBudget + " MB for image decoding)");
+        
+        List<ImageJob> jobs = new ArrayList<>();
+        for (ImageJob job : allJobs) {
+            if (manifest != null && manifest.isDone(job))
+                results.submit(job.index, manifest.readRows(job));
+            else
+                jobs.add(job);
+        }
+        if (jobs.size() < allJobs.size())
+            tools.print((allJobs.size() - jobs.size()) + " images already analyzed, " + jobs.size() + " left");
+        
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads, namedThreads("dna-border"));
+        int overlayThreads = Math.max(1, nThreads/4);
+        overlays = new OverlayRenderer(tools, overlayThreads, 2*overlayThreads);
+        tiles = Executors.newFixedThreadPool(nThreads, namedThreads("dna-border-tiles"));
+        try {
+            if (tools.isBatchMode()) {
+                // Project all images, detect bacteria once for all, then measure
+                runAll(executor, jobs, job -> {
+                    load(job);
+                    ImageMetrics.Timer t = job.metrics.time("segment");
+                    try {
+                        tools.batchAdd(job.rootName, job.imgBact, job.imgDna);
+                    } finally {
+                        t.close();
+                    }
+                    tools.flush_close(job.imgBact);
+                    tools.flush_close(job.imgDna);
+                });
+                tools.print("- Detecting bacteria in all images -");
+                long start = System.nanoTime();
+                tools.batchRun();
+                if (metrics != null)
+                    metrics.addRunStep("omnipose", System.nanoTime() - start);
+                runAll(executor, jobs, job -> {
+                    ImageMetrics.Timer t = job.metrics.time("segment");
+                    try {
+                        ImagePlus[] imgs = tools.batchImages(job.rootName);
+                        job.imgBact = imgs[0];
+                        job.imgDna = imgs[1];
+                        job.bacteria = tools.batchDetection(job.rootName, job.imgBact);
+                    } finally {
+                        t.close();
+                    }
+                    System.out.println(job.rootName + ": " + job.bacteria.size() + " bacteria found");
+                    measure(job);
+                });
+            } else if (tools.isPipelineMode()) {
+                // Decode next images while Omnipose runs, a single Omnipose thread is enough with the worker
+                int segmentThreads = tools.usesOmniposeWorker() ? 1 : Math.max(1, nThreads/2);
+                int ioThreads = Math.max(1, nThreads/2);
+                new StagedPipeline(this, ioThreads, segmentThreads, ioThreads, 2).run(jobs);
+            } else {
+                runAll(executor, jobs, job -> {
+                    load(job);
+                    segment(job);
+                    measure(job);
+                });
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch interrupted", ex);
+        } finally {
+            executor.shutdownNow();
+            tiles.shutdownNow();
+            // Wait for the last overlays
+            try {
+                overlays.close();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            closeReaders();
+            tools.batchClose();
+        }
+    }
+    
+    
+    /**
+     * Open image channels and project them
+     * Decoding waits until enough memory is available
+     */
+    public void load(ImageJob job) throws IOException, FormatException, InterruptedException {
+        tools.print("--- ANALYZING IMAGE " + job.rootName + " ------");
+        ImageMetrics.Timer t = job.metrics.time("load");
+        try {
+            // The file is parsed again only if this thread's reader was on another file
+            ImageProcessorReader r = reader.get();
+            r.setId(job.file);
+            r.setSeries(job.series);
+            decode(job, r);
+        } finally {
+            t.close();
+        }
+    }
+    
+    
+    /**
+     * Indexes of bacteria and DNA channels in the current series of the reader
+     */
+    private int[] seriesChannels(ImageJob job, ImageProcessorReader r) throws IOException, FormatException {
+        String[] channels;
+        try {
+            channels = tools.findChannels(job.file, (IMetadata) r.getMetadataStore(), r);
+        } catch (DependencyException | ServiceException ex) {
+            throw new IOException(ex);
+        }
+        int[] chs = new int[chNames.length];
+        for (int c = 0; c < chNames.length; c++) {
+            chs[c] = Arrays.asList(channels).indexOf(chNames[c]);
+            if (chs[c] < 0)
+                chs[c] = chIndexes[c];
+            if (chs[c] >= r.getSizeC())
+                throw new FormatException("No channel " + chNames[c] + " in " + job.rootName);
+        }
+        return(chs);
+    }
+    
+    
+    private void decode(ImageJob job, ImageProcessorReader r) throws IOException, FormatException, InterruptedException {
+        int[] chs = seriesChannels(job, r);
+        long planeBytes = (long) r.getSizeX() * r.getSizeY() * chs.length * FormatTools.getBytesPerPixel(r.getPixelType());
+        long bytes = tools.isStreamingMode() ? planeBytes * (tools.getMaxBufferedPlanes() + 2) : planeBytes * r.getSizeZ();
+        int permits = (int) Math.min(memoryBudget, Math.max(1, bytes >> 20));
+        memory.acquire(permits);
+        try {
+            if (tools.isStreamingMode()) {
+                ImagePlus[] imgs = tools.openProjections(r, chs, job.frame, new int[] {ZProjector.AVG_METHOD, ZProjector.MAX_METHOD}, job.rootName);
+                job.imgBact = imgs[0];
+                job.imgDna = imgs[1];
+            } else {
+                ImagePlus[] stacks = tools.openChannels(r, chs, job.frame, job.rootName);
+                job.imgBact = tools.doZProjection(stacks[0], ZProjector.AVG_METHOD);
+                job.imgDna = tools.doZProjection(stacks[1], ZProjector.MAX_METHOD);
+                tools.flush_close(stacks[0]);
+                tools.flush_close(stacks[1]);
+            }
+        } finally {
+            memory.release(permits);
+        }
+    }
+    
+    
+    /**
+     * Detect bacteria with Omnipose
+     */
+    public void segment(ImageJob job) throws IOException {
+        tools.print("- Detecting bacteria in " + job.rootName + " -");
+        ImageMetrics.Timer t = job.metrics.time("segment");
+        try {
+            job.bacteria = tools.omniposeDetection(job.imgBact, tiles);
+        } finally {
+            t.close();
+        }
+        System.out.println(job.rootName + ": " + job.bacteria.size() + " bacteria found");
+    }
+    
+    
+    /**
+     * Measure bacteria, queue results and overlays
+     * The image is marked as done once its overlays are saved
+     */
+    public void measure(ImageJob job) throws IOException, InterruptedException {
+        tools.print("- Saving results of " + job.rootName + " -");
+        List<ResultRow> rows = new ArrayList<>();
+        LabelObjects borders;
+        ImageMetrics.Timer t = job.metrics.time("measure");
+        try {
+            borders = tools.saveResults(job.bacteria, job.imgDna, job.imageName, frames ? job.frame+1 : 0, rows);
+            results.submit(job.index, rows);
+            job.rowsSubmitted = true;
+            if (manifest != null)
+                manifest.saveRows(job, rows);
+        } finally {
+            t.close();
+        }
+        job.metrics.setObjects(rows.size());
+        
+        ImagePlus imgBact = job.imgBact, imgDna = job.imgDna;
+        LabelObjects bacteria = job.bacteria;
+        String name = job.rootName;
+        if (tools.hasOverlays(job.index) && tools.isMaskOverlays()) {
+            // Label masks only, projections are not needed
+            int size = bacteria.width * bacteria.height;
+            Calibration cal = imgDna.getCalibration();
+            tools.flush_close(imgBact);
+            tools.flush_close(imgDna);
+            overlays.submit(null, buffers -> tools.saveMasks(bacteria, borders, cal, name, outDir, buffers.get(0, size), buffers.get(1, size)),
+                    job.metrics, overlayDone(job, 1));
+        } else if (tools.hasOverlays(job.index)) {
+            int size = imgBact.getWidth() * imgBact.getHeight();
+            Consumer<Exception> done = overlayDone(job, 2);
+            overlays.submit(imgBact, buffers -> tools.drawResults(imgBact, bacteria, "_bacteria.tif", name, outDir, buffers.get(0, size)),
+                    job.metrics, done);
+            overlays.submit(imgDna, buffers -> tools.drawResults(imgDna, borders, "_edges.tif", name, outDir, buffers.get(0, size)),
+                    job.metrics, done);
+        } else {
+            tools.flush_close(job.imgBact);
+            tools.flush_close(job.imgDna);
+            finish(job);
+        }
+        job.imgBact = job.imgDna = null;
+        job.bacteria = null;
+    }
+    
+    
+    /**
+     * Called once by each of the n overlays of an image, the image is finished by the last one
+     */
+    private Consumer<Exception> overlayDone(ImageJob job, int n) {
+        AtomicInteger pending = new AtomicInteger(n);
+        return error -> {
+            if (error != null)
+                overlayFailed(job, error);
+            if (pending.decrementAndGet() == 0)
+                finish(job);
+        };
+    }
+    
+    
+    /**
+     * Mark a measured image as done, or failed if an overlay could not be saved
+     */
+    private void finish(ImageJob job) {
+        if (job.failed)
+            job.metrics.setStatus("failed");
+        try {
+            if (manifest != null)
+                manifest.mark(job, job.failed ? RunManifest.FAILED : RunManifest.DONE);
+        } catch (IOException ex) {
+            Logger.getLogger(BatchEngine.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if (metrics != null)
+            metrics.record(job.metrics);
+    }
+    
+    
+    /**
+     * Overlay that could not be saved: results of the image are kept, but it is analyzed again on resume
+     */
+    private void overlayFailed(ImageJob job, Exception ex) {
+        Logger.getLogger(BatchEngine.class.getName()).log(Level.SEVERE, "Overlay of " + job.rootName + " failed", ex);
+        synchronized (job) {
+            if (!job.failed)
+                failures.incrementAndGet();
+            job.failed = true;
+        }
+    }
+    
+    
+    /**
+     * Image that could not be processed: log it and leave its rows empty so that next images are still written
+     * If its rows were already queued (failure after measurement), they are kept and the image is only marked as failed
+     */
+    public void failed(ImageJob job, Exception ex) {
+        Logger.getLogger(BatchEngine.class.getName()).log(Level.SEVERE, "Image " + job.rootName + " failed", ex);
+        synchronized (job) {
+            if (!job.failed)
+                failures.incrementAndGet();
+            job.failed = true;
+        }
+        if (job.imgBact != null)
+            tools.flush_close(job.imgBact);
+        if (job.imgDna != null)
+            tools.flush_close(job.imgDna);
+        try {
+            if (!job.rowsSubmitted)
+                results.submit(job.index, new ArrayList<>());
+            if (manifest != null)
+                manifest.mark(job, RunManifest.FAILED);
+            job.metrics.setStatus("failed");
+            if (metrics != null)
+                metrics.record(job.metrics);
+        } catch (IOException e) {
+            Logger.getLogger(BatchEngine.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+    
+    
+    /**
+     * Number of images that could not be analyzed
+     */
+    public int getFailedCount() {
+        return failures.get();
+    }
+    
+    
+    interface JobStep {
+        void process(ImageJob job) throws Exception;
+    }
+    
+    
+    private void runAll(ExecutorService executor, List<ImageJob> jobs, JobStep step) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (ImageJob job : jobs) {
+            if (job.failed)
+                continue;
+            futures.add(executor.submit(() -> {
+                try {
+                    step.process(job);
+                } catch (Exception ex) {
+                    failed(job, ex);
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : futures)
+                f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+    
+    
+    static ThreadFactory namedThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+    
+    
+    private void closeReaders() {
+        for (ImageProcessorReader r : readers) {
+            try {
+                r.close();
+            } catch (IOException ex) {
+                Logger.getLogger(BatchEngine.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        readers.clear();
+    }
+}
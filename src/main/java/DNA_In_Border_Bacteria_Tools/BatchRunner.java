@@ -0,0 +1,181 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import org.apache.commons.io.FilenameUtils;
+import org.scijava.util.ArrayUtils;
+
+
+/**
+ * Analysis of an image folder, shared by the plugin and the headless runner:
+ * find images and their channels, then analyze them with the chosen channels
+ * Each frame of each series (position) of a file is analyzed as a separate image
+ * Results are written in the Results subfolder
+ * With shards, each node analyzes its own part of the sorted image list and writes its own
+ * results_shard<i>of<N>.xls and manifest; ShardMerger combines them afterwards
+ * @author Orion-CIRB
+ */
+public class BatchRunner {
+
+    private final Tools tools;
+    private final String imageDir;
+    private final String outDirResults;
+    private List<ImageJob> jobs = new ArrayList<>();
+    private String[] channels = new String[0];
+    private int shard = 0;
+    private int nShards = 1;
+    private boolean shardByHash = false;
+
+
+    public BatchRunner(Tools tools, String imageDir) {
+        this.tools = tools;
+        this.imageDir = imageDir;
+        this.outDirResults = imageDir + File.separator + "Results" + File.separator;
+    }
+
+
+    /**
+     * Analyze only shard number shard (from 0) of nShards
+     * Images are dealt by their index in the sorted list, or by a hash of their name so that
+     * adding images to the folder does not move the others to another shard
+     */
+    public void setShard(int shard, int nShards, boolean byHash) {
+        if (nShards < 1 || shard < 0 || shard >= nShards)
+            throw new IllegalArgumentException("Invalid shard " + shard + "/" + nShards);
+        this.shard = shard;
+        this.nShards = nShards;
+        this.shardByHash = byHash;
+    }
+
+
+    /**
+     * Shard of an image, the same on every node
+     */
+    public static int shardOf(String file, int index, int nShards, boolean byHash) {
+        if (!byHash)
+            return(index % nShards);
+        return(Math.floorMod(FilenameUtils.getName(file).hashCode(), nShards));
+    }
+
+
+    private String suffix() {
+        return(nShards > 1 ? "_shard" + shard + "of" + nShards : "");
+    }
+
+
+    /**
+     * Find images in folder and their series, read calibration and channel names of the first one
+     * Channels are chosen by name in each series, calibration is read for each series (see Tools.seriesCalib)
+     * @return channel names, or null if no image was found
+     * @throws java.io.IOException
+     * @throws loci.formats.FormatException
+     */
+    public String[] findImages() throws IOException, FormatException, DependencyException, ServiceException {
+        String fileExt = tools.findImageType(new File(imageDir));
+        List<String> files = tools.findImages(imageDir, fileExt);
+        if (files == null || files.isEmpty()) {
+            tools.print("No images found with " + fileExt + " extension in " + imageDir);
+            return(null);
+        }
+
+        ImageProcessorReader reader = tools.newReader();
+        try {
+            // Calibration and channels of the first image of the folder, the same for all shards
+            reader.setId(files.get(0));
+            IMetadata meta = (IMetadata) reader.getMetadataStore();
+            tools.findImageCalib(meta);
+            channels = tools.findChannels(files.get(0), meta, reader);
+
+            // Series and frames of the files of this shard, a shard takes all series of its files
+            jobs = new ArrayList<>();
+            int nFiles = 0, nSeriesAll = 0;
+            for (int i = 0; i < files.size(); i++) {
+                if (shardOf(files.get(i), i, nShards, shardByHash) != shard)
+                    continue;
+                reader.setId(files.get(i));
+                int nSeries = reader.getSeriesCount();
+                for (int s = 0; s < nSeries; s++) {
+                    reader.setSeries(s);
+                    int nFrames = reader.getSizeT();
+                    for (int t = 0; t < nFrames; t++)
+                        jobs.add(new ImageJob(jobs.size(), files.get(i), s, nSeries, t, nFrames));
+                }
+                nSeriesAll += nSeries;
+                nFiles++;
+            }
+            if (nShards > 1)
+                tools.print("Shard " + shard + "/" + nShards + ": " + nFiles + " of " + files.size() + " files");
+            if (jobs.size() > nFiles)
+                tools.print(jobs.size() + " frames in " + nSeriesAll + " series of " + nFiles + " files");
+        } finally {
+            reader.close();
+        }
+        return(channels);
+    }
+
+
+    /**
+     * Table results file, and binary columns file if asked
+     * @param frames true for time-lapse runs, with a Frame column
+     */
+    static ResultSink[] resultSinks(File outDir, String name, boolean binary, boolean frames) throws IOException {
+        ResultSink table = new TsvResultSink(new File(outDir, name + ".xls"), frames);
+        if (!binary)
+            return(new ResultSink[] {table});
+        return(new ResultSink[] {table, new ColumnarResultSink(new File(outDir, name + ".bin"), 1 << 16, frames)});
+    }
+
+
+    /**
+     * Series to analyze, in file order
+     */
+    public List<ImageJob> getJobs() {
+        return(jobs);
+    }
+
+
+    /**
+     * Analyze all images
+     * @param chs names of bacteria and DNA channels
+     * @return number of images that could not be analyzed
+     * @throws java.io.IOException
+     */
+    public int analyze(String[] chs) throws IOException {
+        int[] indexCh = {ArrayUtils.indexOf(channels, chs[0]), ArrayUtils.indexOf(channels, chs[1])};
+        if (indexCh[0] < 0 || indexCh[1] < 0)
+            throw new IllegalArgumentException("Unknown channel " + (indexCh[0] < 0 ? chs[0] : chs[1]));
+
+        // Frame column only if some image is a time-lapse
+        boolean frames = jobs.stream().anyMatch(job -> job.nFrames > 1);
+
+        // Create output folder
+        File outDir = new File(outDirResults);
+        outDir.mkdirs();
+        OrderedResultsWriter resultsWriter = new OrderedResultsWriter(new AsyncResultWriter(tools.getResultsQueue(), tools.getResultsFlushRows(),
+                tools.getResultsFlushMillis(), resultSinks(outDir, "results" + suffix(), tools.isBinaryResults(), frames)));
+        RunManifest manifest = new RunManifest(outDir, "manifest" + suffix() + ".tsv", tools.getParamsKey(indexCh) + (frames ? ";frames" : ""),
+                tools.isResumeMode());
+        RunMetrics metrics = new RunMetrics(new File(outDir, "metrics" + suffix() + ".jsonl"));
+        BatchEngine engine = new BatchEngine(tools, tools.getNThreads());
+        engine.setManifest(manifest);
+        engine.setMetrics(metrics);
+        engine.setFrames(frames);
+        try {
+            engine.run(jobs, chs, indexCh, outDirResults, resultsWriter);
+        } finally {
+            tools.closeOmniposeWorker();
+            tools.printCacheStats();
+            manifest.close();
+            resultsWriter.close();
+            metrics.close();
+        }
+        return(engine.getFailedCount());
+    }
+}
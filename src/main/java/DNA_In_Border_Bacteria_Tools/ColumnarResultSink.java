@@ -0,0 +1,173 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Results as fixed-width binary columns (results.bin), little-endian, to be memory-mapped for analysis
+ * Layout:
+ *   header   "DNABACT1", or "DNABACT2" for time-lapse runs with a Frame column after Image, int chunk size, int number of columns, then per column: byte type (0 int32, 1 float64),
+ *            short name length, UTF-8 name
+ *   chunks   starting on 8 bytes boundaries: int number of rows n, int 0, then each column as n values
+ *            (int32 columns padded to 8 bytes)
+ *   footer   int number of images, image names (int length, UTF-8), int number of chunks, long offset of each chunk
+ *   trailer  long offset of footer, "DNABEND1"
+ * The image column holds indexes in the image names table; bacteria without inside have NaN intensities
+ * The file can only be read once the sink is closed, chunks are found from the footer
+ * @author Orion-CIRB
+ */
+public class ColumnarResultSink implements ResultSink {
+
+    private static final String[] INT_COLUMNS = {"Image", "Bacterium ID"};
+    private static final String[] FRAMES_INT_COLUMNS = {"Image", "Frame", "Bacterium ID"};
+    private static final String[] DOUBLE_COLUMNS = {"Bacterium area (µm2)", "Bacterium length (µm)",
+            "DNA mean intensity inside bacterium", "DNA mean intensity in bacterium edges"};
+
+    private final FileChannel channel;
+    private final int chunkRows;
+    private final boolean frames;
+    private final Map<String, Integer> imageIndexes = new HashMap<>();
+    private final List<String> images = new ArrayList<>();
+    private final List<Long> chunkOffsets = new ArrayList<>();
+
+    // Rows of the current chunk
+    private final int[][] ints;
+    private final double[][] doubles;
+    private int nRows = 0;
+
+
+    /**
+     * @param frames true for time-lapse runs, with a Frame column
+     */
+    public ColumnarResultSink(File file, int chunkRows, boolean frames) throws IOException {
+        this.chunkRows = chunkRows;
+        this.frames = frames;
+        String[] intColumns = frames ? FRAMES_INT_COLUMNS : INT_COLUMNS;
+        ints = new int[intColumns.length][chunkRows];
+        doubles = new double[DOUBLE_COLUMNS.length][chunkRows];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((frames ? "DNABACT2" : "DNABACT1").getBytes(StandardCharsets.US_ASCII));
+        header.putInt(chunkRows);
+        header.putInt(intColumns.length + DOUBLE_COLUMNS.length);
+        for (String name : intColumns)
+            putColumn(header, (byte) 0, name);
+        for (String name : DOUBLE_COLUMNS)
+            putColumn(header, (byte) 1, name);
+        pad(header);
+        header.flip();
+        writeFully(header);
+    }
+
+
+    private static void putColumn(ByteBuffer buf, byte type, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        buf.put(type);
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+
+    private static void pad(ByteBuffer buf) {
+        while (buf.position() % 8 != 0)
+            buf.put((byte) 0);
+    }
+
+
+    @Override
+    public void write(List<ResultRow> rows) throws IOException {
+        for (ResultRow row : rows) {
+            Integer image = imageIndexes.get(row.image);
+            if (image == null) {
+                image = images.size();
+                images.add(row.image);
+                imageIndexes.put(row.image, image);
+            }
+            ints[0][nRows] = image;
+            if (frames)
+                ints[1][nRows] = row.frame;
+            ints[ints.length-1][nRows] = row.id;
+            doubles[0][nRows] = row.area;
+            doubles[1][nRows] = row.length;
+            doubles[2][nRows] = row.insideIntensity;
+            doubles[3][nRows] = row.borderIntensity;
+            if (++nRows == chunkRows)
+                writeChunk();
+        }
+    }
+
+
+    private void writeChunk() throws IOException {
+        if (nRows == 0)
+            return;
+        int intBytes = (nRows * 4 + 7) / 8 * 8;
+        ByteBuffer buf = ByteBuffer.allocate(8 + ints.length * intBytes + doubles.length * nRows * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(nRows).putInt(0);
+        for (int[] column : ints) {
+            buf.asIntBuffer().put(column, 0, nRows);
+            buf.position(buf.position() + intBytes);
+        }
+        for (double[] column : doubles) {
+            buf.asDoubleBuffer().put(column, 0, nRows);
+            buf.position(buf.position() + nRows * 8);
+        }
+        buf.flip();
+        chunkOffsets.add(channel.position());
+        writeFully(buf);
+        nRows = 0;
+    }
+
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf);
+    }
+
+
+    /**
+     * Nothing to do: rows of the current chunk are written once it is full or at close,
+     * and results.bin is only complete and readable after close, which writes the footer
+     */
+    @Override
+    public void flush() {
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        writeChunk();
+        long footerOffset = channel.position();
+        int size = 8 + 8 * chunkOffsets.size() + 16;
+        List<byte[]> names = new ArrayList<>();
+        for (String image : images) {
+            byte[] bytes = image.getBytes(StandardCharsets.UTF_8);
+            names.add(bytes);
+            size += 4 + bytes.length;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        footer.putInt(names.size());
+        for (byte[] bytes : names)
+            footer.putInt(bytes.length).put(bytes);
+        footer.putInt(chunkOffsets.size());
+        for (long offset : chunkOffsets)
+            footer.putLong(offset);
+        footer.putLong(footerOffset);
+        footer.put("DNABEND1".getBytes(StandardCharsets.US_ASCII));
+        footer.flip();
+        writeFully(footer);
+        channel.close();
+    }
+}
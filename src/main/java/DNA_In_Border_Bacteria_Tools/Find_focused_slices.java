@@ -6,6 +6,8 @@ import ij.process.*;
 import java.awt.*;
 import ij.plugin.filter.*;
 import ij.measure.*;
+import java.util.ArrayList;
+import java.util.stream.IntStream;
 
 /** Select focused slices from a Z stack. Based on the autofocus algorithm "Normalized Variance" (Groen et al., 1985; Yeo et
  * al., 1993). However, the images are first treated by a sobel edge filter. This provided a better result for fluorescent bead images.
@@ -38,7 +40,6 @@ public class Find_focused_slices implements PlugInFilter, Measurements {
         int height = imp.getHeight();
         String name = imp.getTitle();
         ImageStack stack2 = new ImageStack(width, height, imp.getProcessor().getColorModel());
-        int fS = 0;
 
         int size = stack.getSize();
         if (size == 1){
@@ -46,93 +47,171 @@ public class Find_focused_slices implements PlugInFilter, Measurements {
             return(null);
         }
 
+        int[] slices = selectSlices(scoreSlices(stack));
+        if (slices == null) {
+            IJ.error("All slices are below the variance threshold value");
+            return(null);
+        }
+        for (int slice : slices) {
+            ImageProcessor ip = stack.getProcessor(slice).duplicate();
+            String label = stack.getSliceLabel(slice);
+            if (label == null) {
+                label = "Z";
+            }
+            stack2.addSlice(label + "_" + slice, ip);
+        }
+		
+        ImagePlus focusstack = imp.createImagePlus();
+        focusstack.setStack("Focused slices of " + name + "_" + percent + "%", stack2);
+        focusstack.setCalibration(imp.getCalibration());
+        if (focusstack.getStackSize() == 1) {
+            focusstack.setProperty("Label", "Z_" + slices[0]);
+        }
+        return(focusstack);
+    }
+    
+    
+    /**
+     * Select slices whose variance is at least percent % of the best one
+     * Slices are returned (numbered from 1) in focused stack order: best slice and the following ones, then the previous ones
+     * @return null if all slices are below the variance threshold
+     */
+    public int[] selectSlices(double[] varA) {
+        int size = varA.length;
+        int fS = 0;
         double vMax = 0;
-        double[] varA = new double[size];
-
         for (int slice = 1; slice <= size; slice++) {
-            imp.setSlice(slice);
-            ImageProcessor ip = imp.getProcessor();
-            varA[slice - 1] = calVar(ip);
             if (varA[slice - 1] > vMax) {
                 vMax = varA[slice - 1];
                 fS = slice;
             }
-
         }
         if (vMax < vThr) {
-            IJ.error("All slices are below the variance threshold value");
             return(null);
         }
-		
-	int nn = 0; 
-	//go through the slices before the best focus slice
+        
+        ArrayList<Integer> before = new ArrayList<>();
+        ArrayList<Integer> after = new ArrayList<>();
+        //go through the slices before the best focus slice
         boolean con = true;
         for (int slice = fS-1; slice >0; slice--) {
             if (varA[slice - 1] / vMax >= percent / 100 && varA[slice - 1] > vThr && con == true) {
-                imp.setSlice(slice);
-                ImageProcessor ip = imp.getProcessor();
-                ip.resetRoi();
-                ip = ip.crop();
-                String label = stack.getSliceLabel(slice);
-                if (label == null) {
-                    label = "Z";
-                }
-                stack2.addSlice(label + "_" + slice, ip,0);
+                before.add(0, slice);
             }else{
             	if(consecutive)	con = false;	
             }
         }
-	//go through the slices after the best focus slice 
-	con = true;             
+        //go through the slices after the best focus slice 
+        con = true;             
         for (int slice = fS; slice <= size; slice++) {
             if (varA[slice - 1] / vMax >= percent / 100 && varA[slice - 1] > vThr && con == true) {
-                imp.setSlice(slice);
-                ImageProcessor ip = imp.getProcessor();
-                ip.resetRoi();
-                ip = ip.crop();
-                String label = stack.getSliceLabel(slice);
-                if (label == null) {
-                    label = "Z";
-                }
-                stack2.addSlice(label + "_" + slice, ip, nn);
-                nn++;
+                after.add(slice);
             } else {
             	if(consecutive)	con = false;	
             }
         }
-		
-        ImagePlus focusstack = imp.createImagePlus();
-        focusstack.setStack("Focused slices of " + name + "_" + percent + "%", stack2);
-        focusstack.setCalibration(imp.getCalibration());
-        if (focusstack.getStackSize() == 1) {
-            focusstack.setProperty("Label", "Z_" + fS);
-        }
-        return(focusstack);
+        after.addAll(before);
+        return(after.stream().mapToInt(Integer::intValue).toArray());
     }
 
-    double calVar(ImageProcessor ip) {
-        double variance = 0;
+    /**
+     * Normalized variance of each slice of the stack, slices are scored in parallel
+     */
+    public double[] scoreSlices(ImageStack stack) {
+        double[] varA = new double[stack.getSize()];
+        IntStream.range(0, varA.length).parallel().forEach(i -> varA[i] = calVar(stack.getProcessor(i + 1)));
+        return varA;
+    }
+    
+
+    /**
+     * Normalized variance of the image: sum over ROI of (pixel - mean)^2 / (W * H * mean), mean taken over the whole image
+     * Sums are accumulated in a single pass over the pixel array, the image is only duplicated in edge mode
+     */
+    public double calVar(ImageProcessor ip) {
         int W = ip.getWidth();
         int H = ip.getHeight();
-
         Rectangle r = ip.getRoi();
-        if (r == null) {
-            r.x = 0;
-            r.y = 0;
-            r.height = H;
-            r.width = W;
+        
+        ImageProcessor edged = ip;
+        if (edge) {
+            edged = ip.duplicate();
+            edged.findEdges();
         }
-        ImageProcessor edged = ip.duplicate();
-        if (edge) edged.findEdges();
-        double mean = ImageStatistics.getStatistics(edged, MEAN, null).mean;
-        double a = 0;
+        
+        double[] sums = pixelSums(edged, r);
+        double mean = sums[0] / ((double) W * H);
+        double roiSize = (double) r.width * r.height;
+        double a = sums[2] - 2 * mean * sums[1] + roiSize * mean * mean;
+        double variance = (1 / (W * H * mean)) * a;
+        return variance;
+    }
+    
+    
+    /**
+     * Sum of all pixels, sum and sum of squares of ROI pixels
+     */
+    private double[] pixelSums(ImageProcessor ip, Rectangle r) {
+        int W = ip.getWidth();
+        boolean fullRoi = r.x == 0 && r.y == 0 && r.width == W && r.height == ip.getHeight();
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) {
+            byte[] px = (byte[]) pixels;
+            long sum = 0, roiSum = 0, roiSum2 = 0;
+            for (int y = r.y; y < r.y + r.height; y++) {
+                for (int i = y * W + r.x, end = i + r.width; i < end; i++) {
+                    long v = px[i] & 0xff;
+                    roiSum += v;
+                    roiSum2 += v * v;
+                }
+            }
+            if (fullRoi)
+                sum = roiSum;
+            else
+                for (byte v : px) sum += v & 0xff;
+            return new double[] {sum, roiSum, roiSum2};
+        } else if (pixels instanceof short[]) {
+            short[] px = (short[]) pixels;
+            long sum = 0, roiSum = 0, roiSum2 = 0;
+            for (int y = r.y; y < r.y + r.height; y++) {
+                for (int i = y * W + r.x, end = i + r.width; i < end; i++) {
+                    long v = px[i] & 0xffff;
+                    roiSum += v;
+                    roiSum2 += v * v;
+                }
+            }
+            if (fullRoi)
+                sum = roiSum;
+            else
+                for (short v : px) sum += v & 0xffff;
+            return new double[] {sum, roiSum, roiSum2};
+        } else if (pixels instanceof float[]) {
+            float[] px = (float[]) pixels;
+            double sum = 0, roiSum = 0, roiSum2 = 0;
+            for (int y = r.y; y < r.y + r.height; y++) {
+                for (int i = y * W + r.x, end = i + r.width; i < end; i++) {
+                    double v = px[i];
+                    roiSum += v;
+                    roiSum2 += v * v;
+                }
+            }
+            if (fullRoi)
+                sum = roiSum;
+            else
+                for (float v : px) sum += v;
+            return new double[] {sum, roiSum, roiSum2};
+        }
+        // RGB images: same values as the former getPixel() based metric
+        double mean = ImageStatistics.getStatistics(ip, MEAN, null).mean;
+        double roiSum = 0, roiSum2 = 0;
         for (int y = r.y; y < (r.y + r.height); y++) {
             for (int x = r.x; x < (r.x + r.width); x++) {
-                a += Math.pow(edged.getPixel(x, y) - mean, 2);
+                double v = ip.getPixel(x, y);
+                roiSum += v;
+                roiSum2 += v * v;
             }
         }
-        variance = (1 / (W * H * mean)) * a;
-        return variance;
+        return new double[] {mean * W * ip.getHeight(), roiSum, roiSum2};
     }
     
     
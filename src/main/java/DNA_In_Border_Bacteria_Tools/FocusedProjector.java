@@ -0,0 +1,128 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ZProjector;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+
+/**
+ * Z projection accumulated plane by plane into a single output plane
+ * Gives the same result as ZProjector on a stack of the added planes, without building that stack
+ * Supported methods: ZProjector.AVG_METHOD, MAX_METHOD and SUM_METHOD
+ * @author Orion-CIRB
+ */
+public class FocusedProjector {
+
+    private final int method;
+    private final int width;
+    private final int height;
+    private final float[] acc;
+    private int bitDepth = 0;
+    private int count = 0;
+    private ImageProcessor single = null;
+
+
+    public FocusedProjector(int method, int width, int height) {
+        if (method != ZProjector.AVG_METHOD && method != ZProjector.MAX_METHOD && method != ZProjector.SUM_METHOD)
+            throw new IllegalArgumentException("Unsupported projection method " + method);
+        this.method = method;
+        this.width = width;
+        this.height = height;
+        acc = new float[width*height];
+        if (method == ZProjector.MAX_METHOD)
+            Arrays.fill(acc, -Float.MAX_VALUE);
+    }
+
+
+    /**
+     * Fold a plane into the projection
+     */
+    public void add(ImageProcessor ip) {
+        bitDepth = ip.getBitDepth();
+        Object pixels = ip.getPixels();
+        int n = acc.length;
+        if (pixels instanceof short[]) {
+            short[] px = (short[]) pixels;
+            if (method == ZProjector.MAX_METHOD) {
+                for (int i = 0; i < n; i++) acc[i] = Math.max(acc[i], px[i] & 0xffff);
+            } else {
+                for (int i = 0; i < n; i++) acc[i] += px[i] & 0xffff;
+            }
+        } else if (pixels instanceof byte[]) {
+            byte[] px = (byte[]) pixels;
+            if (method == ZProjector.MAX_METHOD) {
+                for (int i = 0; i < n; i++) acc[i] = Math.max(acc[i], px[i] & 0xff);
+            } else {
+                for (int i = 0; i < n; i++) acc[i] += px[i] & 0xff;
+            }
+        } else {
+            float[] px = (float[]) ip.convertToFloatProcessor().getPixels();
+            if (method == ZProjector.MAX_METHOD) {
+                for (int i = 0; i < n; i++) acc[i] = Math.max(acc[i], px[i]);
+            } else {
+                for (int i = 0; i < n; i++) acc[i] += px[i];
+            }
+        }
+        count++;
+        single = count == 1 ? ip : null;
+    }
+
+
+    public int getCount() {
+        return(count);
+    }
+
+
+    /**
+     * Projected plane: 32-bit for sum, input type for average and max as with ZProjector
+     * A single plane is returned as a copy for average and max, as a 32-bit copy for sum
+     */
+    public ImageProcessor getProjection() {
+        if (single != null && method != ZProjector.SUM_METHOD)
+            return(single.duplicate());
+        float[] pixels = acc.clone();
+        FloatProcessor fp = new FloatProcessor(width, height, pixels);
+        if (method == ZProjector.AVG_METHOD)
+            for (int i = 0; i < pixels.length; i++) pixels[i] /= count;
+        if (method != ZProjector.SUM_METHOD) {
+            if (bitDepth == 8)
+                return(fp.convertToByteProcessor(false));
+            if (bitDepth == 16)
+                return(fp.convertToShortProcessor(false));
+        }
+        fp.resetMinAndMax();
+        return(fp);
+    }
+
+
+    /**
+     * Project the focused slices of a stack, reading slices straight from the source stack
+     */
+    public static ImagePlus project(ImagePlus img, int method, Find_focused_slices focus) {
+        ImageStack stack = img.getStack();
+        long start = System.nanoTime();
+        int[] slices = stack.getSize() == 1 ? new int[] {1} : focus.selectSlices(focus.scoreSlices(stack));
+        ImageMetrics.addTime("focus", System.nanoTime() - start);
+        if (slices == null)
+            throw new IllegalStateException("All slices of " + img.getTitle() + " are below the variance threshold value");
+        FocusedProjector projector = new FocusedProjector(method, img.getWidth(), img.getHeight());
+        for (int slice : slices)
+            projector.add(stack.getProcessor(slice));
+
+        ImagePlus proj = new ImagePlus(title(method, img.getTitle()), projector.getProjection());
+        proj.setCalibration(img.getCalibration());
+        return(proj);
+    }
+
+
+    /**
+     * Projection title, as given by ZProjector
+     */
+    static String title(int method, String imgTitle) {
+        String prefix = method == ZProjector.AVG_METHOD ? "AVG_" : method == ZProjector.MAX_METHOD ? "MAX_" : "SUM_";
+        return(prefix + imgTitle);
+    }
+}
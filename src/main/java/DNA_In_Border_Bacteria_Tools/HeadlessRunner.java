@@ -0,0 +1,234 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Run the analysis of an image folder without dialog nor display, for cluster nodes
+ * Usage (from Fiji: ImageJ-linux64 --headless --main-class DNA_In_Border_Bacteria_Tools.HeadlessRunner ...):
+ *   --input DIR --bacteria CHANNEL --dna CHANNEL --omnipose-env DIR --omnipose-models DIR
+ *   [--omnipose-model NAME] [--omnipose-mode worker|per-image|single-call] [--omnipose-env-type conda|venv|stub] [--cpu]
+ *   [--omnipose-timeout s]
+ *   [--min-area µm2] [--max-area µm2] [--erosion µm] [--pixel-size µm] [--threads N]
+ *   [--pipeline] [--no-stream] [--no-resume] [--no-cache] [--binary] [--shard i/N] [--shard-by index|hash]
+ *   [--overlays-every N] [--overlay-compression none|lzw|deflate] [--masks] [--tile-size N] [--tile-overlap N]
+ *   [--results-queue N] [--results-flush-rows N] [--results-flush-ms ms]
+ * or, once all shards are done: --input DIR --merge [--binary]
+ * --binary also saves results as binary columns (results.bin, see ColumnarResultSink)
+ * --overlays-every N saves overlay images of one image out of N only, none with 0
+ * --masks saves label masks of bacteria and edges instead of overlay images (see DNA_In_Border_Bacteria_Viewer)
+ * --omnipose-timeout s restarts the Omnipose worker if an image takes longer than s seconds per megapixel (120 by default)
+ * --omnipose-env-type stub segments with CellposeStubWorker instead of Omnipose, for tests (worker mode only)
+ * --tile-size N segments images larger than N pixels in tiles overlapping by --tile-overlap pixels (128 by default, see TileGrid)
+ * --results-queue N images queued for the results writer before measurement waits (256 by default),
+ * --results-flush-rows N and --results-flush-ms ms rows or time pending before results are flushed (10000 rows, 2000 ms)
+ * A channel is given by its name as shown in the plugin dialog, or by its number starting from 0
+ * Exit codes: 0 all images analyzed, 1 some images failed (or shards missing at merge), 2 bad arguments, 3 no images found, 4 analysis error
+ * @author Orion-CIRB
+ */
+public class HeadlessRunner {
+
+    public static final int OK = 0;
+    public static final int IMAGES_FAILED = 1;
+    public static final int BAD_ARGUMENTS = 2;
+    public static final int NO_IMAGES = 3;
+    public static final int ERROR = 4;
+
+    private static final String[] FLAGS = {"--cpu", "--pipeline", "--no-stream", "--no-resume", "--no-cache", "--merge", "--binary", "--masks"};
+
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args));
+    }
+
+
+    /**
+     * Parse arguments and analyze the input folder
+     * @return exit code
+     */
+    public static int run(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (Arrays.asList(FLAGS).contains(args[i])) {
+                options.put(args[i], "true");
+            } else if (args[i].startsWith("--") && i+1 < args.length) {
+                options.put(args[i], args[++i]);
+            } else {
+                System.err.println("Unexpected argument " + args[i]);
+                return(usage());
+            }
+        }
+        if (options.containsKey("--merge"))
+            return(merge(options.get("--input"), options.containsKey("--binary")));
+        for (String required : new String[] {"--input", "--bacteria", "--dna", "--omnipose-env", "--omnipose-models"}) {
+            if (!options.containsKey(required)) {
+                System.err.println("Missing " + required);
+                return(usage());
+            }
+        }
+        try {
+            Class.forName("mcib3d.geom2.Objects3DIntPopulation");
+        } catch (ClassNotFoundException e) {
+            System.err.println("3D ImageJ Suite not found in class path");
+            return(ERROR);
+        }
+
+        Tools tools = new Tools();
+        BatchRunner runner = new BatchRunner(tools, new File(options.get("--input")).getAbsolutePath());
+        String[] chs = new String[2];
+        try {
+            tools.setOmniposeEnvDir(options.get("--omnipose-env"));
+            tools.setOmniposeModelsPath(options.get("--omnipose-models"));
+            if (options.containsKey("--omnipose-model"))
+                tools.setOmniposeModel(options.get("--omnipose-model"));
+            tools.setOmniposeEnvType(omniposeEnvType(options.getOrDefault("--omnipose-env-type", "conda")));
+            tools.setOmniposeMode(omniposeMode(tools, options.getOrDefault("--omnipose-mode", "worker")));
+            tools.setOmniposeTimeout(Integer.parseInt(options.getOrDefault("--omnipose-timeout", "120")));
+            tools.setUseGpu(!options.containsKey("--cpu"));
+            tools.setBactSurfaceRange(Double.parseDouble(options.getOrDefault("--min-area", "1")),
+                    Double.parseDouble(options.getOrDefault("--max-area", "20")));
+            tools.setBactErosion(Float.parseFloat(options.getOrDefault("--erosion", "0.4")));
+            tools.setNThreads(Integer.parseInt(options.getOrDefault("--threads", "" + Runtime.getRuntime().availableProcessors())));
+            tools.setProcessingMode(tools.processingModes[options.containsKey("--pipeline") ? 1 : 0]);
+            tools.setStreamPlanes(!options.containsKey("--no-stream"));
+            tools.setResume(!options.containsKey("--no-resume"));
+            tools.setMaskCache(!options.containsKey("--no-cache"));
+            tools.setBinaryResults(options.containsKey("--binary"));
+            tools.setOverlaysEvery(Integer.parseInt(options.getOrDefault("--overlays-every", "1")));
+            tools.setOverlayFormat(tools.overlayFormats[options.containsKey("--masks") ? 1 : 0]);
+            tools.setOverlayCompression(overlayCompression(tools, options.getOrDefault("--overlay-compression", "none")));
+            tools.setTiles(Integer.parseInt(options.getOrDefault("--tile-size", "0")), Integer.parseInt(options.getOrDefault("--tile-overlap", "128")));
+            tools.setResultsBuffering(Integer.parseInt(options.getOrDefault("--results-queue", "256")),
+                    Integer.parseInt(options.getOrDefault("--results-flush-rows", "10000")),
+                    Long.parseLong(options.getOrDefault("--results-flush-ms", "2000")));
+            if (options.containsKey("--shard")) {
+                String[] shard = options.get("--shard").split("/");
+                if (shard.length != 2)
+                    throw new IllegalArgumentException("Shard must be given as i/N");
+                String by = options.getOrDefault("--shard-by", "index");
+                if (!by.equals("index") && !by.equals("hash"))
+                    throw new IllegalArgumentException("Unknown shard mode " + by);
+                runner.setShard(Integer.parseInt(shard[0]), Integer.parseInt(shard[1]), by.equals("hash"));
+            }
+
+            String[] channels = runner.findImages();
+            if (channels == null)
+                return(NO_IMAGES);
+            // Pixel size from each series, unless given
+            tools.setPixelSize(options.containsKey("--pixel-size") ? Double.parseDouble(options.get("--pixel-size")) : tools.cal.pixelWidth);
+            tools.setSeriesCalib(!options.containsKey("--pixel-size"));
+            chs[0] = channel(channels, options.get("--bacteria"));
+            chs[1] = channel(channels, options.get("--dna"));
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return(usage());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return(ERROR);
+        }
+
+        try {
+            int failed = runner.analyze(chs);
+            tools.print("--- All done! " + (runner.getJobs().size() - failed) + "/" + runner.getJobs().size() + " images analyzed ---");
+            return(failed == 0 ? OK : IMAGES_FAILED);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return(ERROR);
+        }
+    }
+
+
+    /**
+     * Merge results of all shards of the input folder
+     */
+    private static int merge(String input, boolean binary) {
+        if (input == null) {
+            System.err.println("Missing --input");
+            return(usage());
+        }
+        Tools tools = new Tools();
+        String imageDir = new File(input).getAbsolutePath();
+        List<String> imageFiles = tools.findImages(imageDir, tools.findImageType(new File(imageDir)));
+        ShardMerger merger = new ShardMerger(new File(imageDir, "Results"));
+        try {
+            merger.merge(imageFiles == null ? new ArrayList<>() : imageFiles, binary);
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            return(ERROR);
+        }
+        return(merger.getMissingShards() == 0 ? OK : IMAGES_FAILED);
+    }
+
+
+    /**
+     * Channel name from its name or its number
+     */
+    private static String channel(String[] channels, String ch) {
+        for (String name : channels)
+            if (name.equals(ch))
+                return(name);
+        try {
+            int index = Integer.parseInt(ch);
+            if (index >= 0 && index < channels.length)
+                return(channels[index]);
+        } catch (NumberFormatException e) {
+            // not a channel number
+        }
+        throw new IllegalArgumentException("Unknown channel " + ch + ", channels are " + String.join(", ", channels));
+    }
+
+
+    private static String omniposeMode(Tools tools, String mode) {
+        switch (mode) {
+            case "worker" :
+                return(tools.omniposeModes[0]);
+            case "per-image" :
+                return(tools.omniposeModes[1]);
+            case "single-call" :
+                return(tools.omniposeModes[2]);
+            default :
+                throw new IllegalArgumentException("Unknown Omnipose mode " + mode);
+        }
+    }
+
+
+    private static String omniposeEnvType(String type) {
+        if (!type.equals("conda") && !type.equals("venv") && !type.equals("stub"))
+            throw new IllegalArgumentException("Unknown Omnipose environment type " + type);
+        return(type);
+    }
+
+
+    private static String overlayCompression(Tools tools, String compression) {
+        switch (compression) {
+            case "none" :
+                return(tools.overlayCompressions[0]);
+            case "lzw" :
+                return(tools.overlayCompressions[1]);
+            case "deflate" :
+                return(tools.overlayCompressions[2]);
+            default :
+                throw new IllegalArgumentException("Unknown overlay compression " + compression);
+        }
+    }
+
+
+    private static int usage() {
+        System.err.println("Usage: --input DIR --bacteria CHANNEL --dna CHANNEL --omnipose-env DIR --omnipose-models DIR\n" +
+                "  [--omnipose-model NAME] [--omnipose-mode worker|per-image|single-call] [--omnipose-env-type conda|venv|stub] [--cpu]\n" +
+                "  [--omnipose-timeout s]\n" +
+                "  [--min-area µm2] [--max-area µm2] [--erosion µm] [--pixel-size µm] [--threads N]\n" +
+                "  [--pipeline] [--no-stream] [--no-resume] [--no-cache] [--binary] [--shard i/N] [--shard-by index|hash]\n" +
+                "  [--overlays-every N] [--overlay-compression none|lzw|deflate] [--masks] [--tile-size N] [--tile-overlap N]\n" +
+                "  [--results-queue N] [--results-flush-rows N] [--results-flush-ms ms]\n" +
+                "or: --input DIR --merge [--binary]");
+        return(BAD_ARGUMENTS);
+    }
+}
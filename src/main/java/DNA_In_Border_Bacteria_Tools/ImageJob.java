@@ -0,0 +1,53 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * One image of the batch, a time frame of a series (position) of a file, and what has been computed for it so far
+ * Series of a multi-series file are named <file>_s<series>, from 1; frames of a time-lapse keep the name
+ * of their series in results, next to their frame, and are saved as <name>_t<frame>
+ * @author Orion-CIRB
+ */
+public class ImageJob {
+    
+    public final int index;
+    public final String file;
+    public final int series;
+    public final int frame;
+    public final int nFrames;
+    public final String key;
+    // Name in results, the same for all frames
+    public final String imageName;
+    public final String rootName;
+    
+    public ImagePlus imgBact;
+    public ImagePlus imgDna;
+    public LabelObjects bacteria;
+    public boolean failed = false;
+    // Rows already queued to the results writer, which takes each image once
+    public boolean rowsSubmitted = false;
+    public final ImageMetrics metrics;
+    
+    
+    public ImageJob(int index, String file) {
+        this(index, file, 0, 1, 0, 1);
+    }
+    
+    
+    /**
+     * Frame frame (from 0) of nFrames, of series series (from 0) of a file of nSeries series
+     */
+    public ImageJob(int index, String file, int series, int nSeries, int frame, int nFrames) {
+        this.index = index;
+        this.file = file;
+        this.series = series;
+        this.frame = frame;
+        this.nFrames = nFrames;
+        this.key = file + (nSeries > 1 ? "#" + (series+1) : "") + (nFrames > 1 ? "@" + (frame+1) : "");
+        this.imageName = FilenameUtils.getBaseName(file) + (nSeries > 1 ? "_s" + (series+1) : "");
+        this.rootName = imageName + (nFrames > 1 ? "_t" + (frame+1) : "");
+        this.metrics = new ImageMetrics(rootName, index);
+    }
+}
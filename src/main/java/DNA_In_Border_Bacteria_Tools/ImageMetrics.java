@@ -0,0 +1,168 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Time and resources spent on one image
+ * Stages (load, segment, measure, draw) are timed with time(stage), giving wall and CPU time of the calling thread.
+ * While a stage runs, code called from it adds sub-step times (focus scoring, Omnipose) and bytes read or written
+ * to the image with the static add methods, without having to know which image it works on
+ * Heap use is only sampled at the end of stages; the true peak of the run is given by RunMetrics
+ * @author Orion-CIRB
+ */
+public class ImageMetrics {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final ThreadLocal<ImageMetrics> CURRENT = new ThreadLocal<>();
+
+    public final String image;
+    public final int index;
+    // Stage -> {wall ns, cpu ns}
+    final Map<String, long[]> stages = new LinkedHashMap<>();
+    // Sub-step -> wall ns
+    final Map<String, Long> steps = new LinkedHashMap<>();
+    long bytesRead = 0;
+    long bytesWritten = 0;
+    // Largest JVM heap use sampled when a stage of the image ends, images running at the same time included
+    long sampledHeap = 0;
+    int objects = 0;
+    String status = "done";
+
+
+    public ImageMetrics(String image, int index) {
+        this.image = image;
+        this.index = index;
+    }
+
+
+    /**
+     * Timer of a stage, to be closed at the end of the stage
+     */
+    public class Timer implements AutoCloseable {
+        private final String stage;
+        private final ImageMetrics previous;
+        private final long wall;
+        private final long cpu;
+
+        Timer(String stage) {
+            this.stage = stage;
+            previous = CURRENT.get();
+            CURRENT.set(ImageMetrics.this);
+            wall = System.nanoTime();
+            cpu = cpuTime();
+        }
+
+        @Override
+        public void close() {
+            long[] times = {System.nanoTime() - wall, cpuTime() - cpu};
+            synchronized (ImageMetrics.this) {
+                stages.merge(stage, times, (a, b) -> new long[] {a[0] + b[0], a[1] + b[1]});
+            }
+            sampleHeap();
+            CURRENT.set(previous);
+        }
+    }
+
+
+    public Timer time(String stage) {
+        return new Timer(stage);
+    }
+
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+
+    private synchronized void sampleHeap() {
+        Runtime rt = Runtime.getRuntime();
+        sampledHeap = Math.max(sampledHeap, rt.totalMemory() - rt.freeMemory());
+    }
+
+
+    public synchronized void setObjects(int objects) {
+        this.objects = objects;
+    }
+
+
+    public synchronized void setStatus(String status) {
+        this.status = status;
+    }
+
+
+    /**
+     * Image processed by the calling thread, or null
+     */
+    public static ImageMetrics current() {
+        return CURRENT.get();
+    }
+
+
+    /**
+     * Add time of a sub-step to the image processed by the calling thread, if any
+     */
+    public static void addTime(String step, long ns) {
+        ImageMetrics m = CURRENT.get();
+        if (m != null) {
+            synchronized (m) {
+                m.steps.merge(step, ns, Long::sum);
+            }
+        }
+    }
+
+
+    public static void addBytesRead(long bytes) {
+        ImageMetrics m = CURRENT.get();
+        if (m != null) {
+            synchronized (m) {
+                m.bytesRead += bytes;
+            }
+        }
+    }
+
+
+    public static void addBytesWritten(long bytes) {
+        ImageMetrics m = CURRENT.get();
+        if (m != null) {
+            synchronized (m) {
+                m.bytesWritten += bytes;
+            }
+        }
+    }
+
+
+    /**
+     * One JSON line
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"image\":\"").append(image.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+        json.append(",\"index\":").append(index);
+        json.append(",\"status\":\"").append(status).append("\"");
+        json.append(",\"stages\":{");
+        String sep = "";
+        for (Map.Entry<String, long[]> e : stages.entrySet()) {
+            json.append(sep).append("\"").append(e.getKey()).append("\":{\"wall_ms\":").append(ms(e.getValue()[0]))
+                    .append(",\"cpu_ms\":").append(ms(e.getValue()[1])).append("}");
+            sep = ",";
+        }
+        json.append("}");
+        for (Map.Entry<String, Long> e : steps.entrySet())
+            json.append(",\"").append(e.getKey()).append("_ms\":").append(ms(e.getValue()));
+        json.append(",\"bytes_read\":").append(bytesRead);
+        json.append(",\"bytes_written\":").append(bytesWritten);
+        json.append(",\"heap_sampled_mb\":").append(sampledHeap >> 20);
+        json.append(",\"objects\":").append(objects);
+        json.append("}");
+        return json.toString();
+    }
+
+
+    static String ms(long ns) {
+        return String.format(java.util.Locale.ROOT, "%.1f", ns / 1e6);
+    }
+}
@@ -0,0 +1,306 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+
+
+/**
+ * Objects of a 2D label image, stored as two int arrays (CSR layout) instead of one mcib3d object per label:
+ * pixels of object with label l are pixels[offsets[l-1]] .. pixels[offsets[l]-1], as indexes x + y*width in raster order
+ * Labels go from 1 to size(), objects of a label missing from the image are empty
+ * Filters return a new store with kept objects labelled from 1, as mcib3d resetLabels
+ * Labels are ints, stitched images may hold more than 65535 objects; 16-bit label images drawn for display
+ * wrap labels above 65535 back to 1
+ * @author Orion-CIRB
+ */
+public class LabelObjects {
+
+    public final int width;
+    public final int height;
+    private final int[] offsets;
+    private final int[] pixels;
+
+
+    private LabelObjects(int width, int height, int[] offsets, int[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.offsets = offsets;
+        this.pixels = pixels;
+    }
+
+
+    /**
+     * Objects of a 16-bit label image, labels are kept
+     */
+    public static LabelObjects fromLabels(short[] labels, int width, int height) {
+        int[] intLabels = new int[labels.length];
+        for (int i = 0; i < labels.length; i++)
+            intLabels[i] = labels[i] & 0xffff;
+        return(fromLabels(intLabels, width, height));
+    }
+
+
+    /**
+     * Objects of a label image, labels are kept
+     */
+    public static LabelObjects fromLabels(int[] labels, int width, int height) {
+        // Pixels per label, then pixels in raster order sorted by label
+        int maxLabel = 0;
+        for (int label : labels)
+            if (label > maxLabel)
+                maxLabel = label;
+        int[] counts = new int[maxLabel + 1];
+        for (int label : labels)
+            counts[label]++;
+        int[] offsets = new int[maxLabel + 1];
+        for (int l = 1; l <= maxLabel; l++)
+            offsets[l] = offsets[l-1] + counts[l];
+        int[] next = Arrays.copyOf(offsets, maxLabel);
+        int[] pixels = new int[offsets[maxLabel]];
+        for (int i = 0; i < labels.length; i++) {
+            int label = labels[i];
+            if (label != 0)
+                pixels[next[label-1]++] = i;
+        }
+        return(new LabelObjects(width, height, offsets, pixels));
+    }
+
+
+    /**
+     * Bacteria of an Omnipose mask not touching the image borders and of min to max pixels
+     * Pixel counts and border contacts come from one scan of the mask, kept bacteria are then relabelled from 1 in the mask itself
+     * while their pixels are stored: objects filtered out are never built
+     */
+    public static LabelObjects filterMask(short[] mask, int width, int height, double min, double max) {
+        int[] counts = new int[65536];
+        boolean[] border = new boolean[65536];
+        int maxLabel = 0;
+        for (int y = 0, i = 0; y < height; y++) {
+            boolean edgeRow = y == 0 || y == height-1;
+            for (int x = 0; x < width; x++, i++) {
+                int label = mask[i] & 0xffff;
+                counts[label]++;
+                if (edgeRow || x == 0 || x == width-1)
+                    border[label] = true;
+                if (label > maxLabel)
+                    maxLabel = label;
+            }
+        }
+        
+        int[] newLabels = newLabels(counts, border, maxLabel, min, max);
+        int[] offsets = offsets(counts, newLabels, maxLabel);
+        int n = offsets.length - 1;
+        
+        int[] next = Arrays.copyOf(offsets, n);
+        int[] pixels = new int[offsets[n]];
+        for (int i = 0; i < mask.length; i++) {
+            int label = newLabels[mask[i] & 0xffff];
+            mask[i] = (short) label;
+            if (label != 0)
+                pixels[next[label-1]++] = i;
+        }
+        return(new LabelObjects(width, height, offsets, pixels));
+    }
+
+
+    /**
+     * Same as filterMask for a mask with int labels, such as a mask stitched from tiles
+     */
+    public static LabelObjects filterMask(int[] mask, int width, int height, double min, double max) {
+        int maxLabel = 0;
+        for (int label : mask)
+            if (label > maxLabel)
+                maxLabel = label;
+        int[] counts = new int[maxLabel + 1];
+        boolean[] border = new boolean[maxLabel + 1];
+        for (int y = 0, i = 0; y < height; y++) {
+            boolean edgeRow = y == 0 || y == height-1;
+            for (int x = 0; x < width; x++, i++) {
+                int label = mask[i];
+                counts[label]++;
+                if (edgeRow || x == 0 || x == width-1)
+                    border[label] = true;
+            }
+        }
+        
+        int[] newLabels = newLabels(counts, border, maxLabel, min, max);
+        int[] offsets = offsets(counts, newLabels, maxLabel);
+        int n = offsets.length - 1;
+        
+        int[] next = Arrays.copyOf(offsets, n);
+        int[] pixels = new int[offsets[n]];
+        for (int i = 0; i < mask.length; i++) {
+            int label = newLabels[mask[i]];
+            mask[i] = label;
+            if (label != 0)
+                pixels[next[label-1]++] = i;
+        }
+        return(new LabelObjects(width, height, offsets, pixels));
+    }
+
+
+    /**
+     * New labels of kept bacteria, in label order from 1, 0 for others
+     */
+    private static int[] newLabels(int[] counts, boolean[] border, int maxLabel, double min, double max) {
+        int[] newLabels = new int[maxLabel + 1];
+        int n = 0;
+        for (int l = 1; l <= maxLabel; l++)
+            if (counts[l] > 0 && !border[l] && counts[l] >= min && counts[l] <= max)
+                newLabels[l] = ++n;
+        return(newLabels);
+    }
+
+
+    /**
+     * Offsets of kept bacteria in the pixels array
+     */
+    private static int[] offsets(int[] counts, int[] newLabels, int maxLabel) {
+        int n = 0;
+        for (int l = 1; l <= maxLabel; l++)
+            n = Math.max(n, newLabels[l]);
+        int[] offsets = new int[n + 1];
+        for (int l = 1; l <= maxLabel; l++)
+            if (newLabels[l] != 0)
+                offsets[newLabels[l]] = offsets[newLabels[l]-1] + counts[l];
+        return(offsets);
+    }
+
+
+    /**
+     * Number of labels
+     */
+    public int size() {
+        return(offsets.length - 1);
+    }
+
+
+    /**
+     * Number of pixels of object with label l
+     */
+    public int getArea(int l) {
+        return(offsets[l] - offsets[l-1]);
+    }
+
+
+    /**
+     * True if object with label l touches the image borders
+     */
+    public boolean touchesBorder(int l) {
+        for (int i = offsets[l-1]; i < offsets[l]; i++) {
+            int x = pixels[i] % width;
+            int y = pixels[i] / width;
+            if (x == 0 || y == 0 || x == width-1 || y == height-1)
+                return(true);
+        }
+        return(false);
+    }
+
+
+    /**
+     * Objects not touching the image borders
+     */
+    public LabelObjects excludeBorders() {
+        boolean[] keep = new boolean[size() + 1];
+        for (int l = 1; l <= size(); l++)
+            keep[l] = getArea(l) > 0 && !touchesBorder(l);
+        return(select(keep));
+    }
+
+
+    /**
+     * Objects of min to max pixels
+     */
+    public LabelObjects filterSize(double min, double max) {
+        boolean[] keep = new boolean[size() + 1];
+        for (int l = 1; l <= size(); l++)
+            keep[l] = getArea(l) > 0 && getArea(l) >= min && getArea(l) <= max;
+        return(select(keep));
+    }
+
+
+    /**
+     * Kept objects, labelled from 1 in label order
+     */
+    private LabelObjects select(boolean[] keep) {
+        int n = 0, nPixels = 0;
+        for (int l = 1; l <= size(); l++) {
+            if (keep[l]) {
+                n++;
+                nPixels += getArea(l);
+            }
+        }
+        int[] newOffsets = new int[n + 1];
+        int[] newPixels = new int[nPixels];
+        n = 0;
+        for (int l = 1; l <= size(); l++) {
+            if (keep[l]) {
+                System.arraycopy(pixels, offsets[l-1], newPixels, newOffsets[n], getArea(l));
+                newOffsets[n+1] = newOffsets[n] + getArea(l);
+                n++;
+            }
+        }
+        return(new LabelObjects(width, height, newOffsets, newPixels));
+    }
+
+
+    /**
+     * Draw objects in a 16-bit label buffer of width x height pixels, cleared first
+     * Labels above 65535 start again from 1, this is only meant for display
+     */
+    public void draw(short[] labels) {
+        Arrays.fill(labels, (short) 0);
+        for (int l = 1; l <= size(); l++)
+            for (int i = offsets[l-1]; i < offsets[l]; i++)
+                labels[pixels[i]] = (short) ((l-1) % 65535 + 1);
+    }
+
+
+    /**
+     * Draw objects in a label buffer of width x height pixels, cleared first
+     */
+    public void draw(int[] labels) {
+        Arrays.fill(labels, 0);
+        for (int l = 1; l <= size(); l++)
+            for (int i = offsets[l-1]; i < offsets[l]; i++)
+                labels[pixels[i]] = l;
+    }
+
+
+    /**
+     * Label image of objects
+     */
+    public ShortProcessor toLabels() {
+        short[] labels = new short[width * height];
+        draw(labels);
+        return(new ShortProcessor(width, height, labels, null));
+    }
+
+
+    /**
+     * Measure area, length and intensities of objects (see BacteriaMeasure)
+     * @param radius erosion radius in pixels separating inside from edges
+     */
+    public BacteriaMeasure measure(ImageProcessor intensity, float radius) {
+        int[] labels = new int[width * height];
+        draw(labels);
+        BacteriaMeasure measure = new BacteriaMeasure(labels, width, height, size());
+        measure.measure(intensity, radius);
+        return(measure);
+    }
+
+
+    /**
+     * Objects as a mcib3d population, for 3D ImageJ Suite tools
+     */
+    public Objects3DIntPopulation toPopulation(Calibration cal) {
+        ImagePlus imgLabels = new ImagePlus("labels", toLabels());
+        imgLabels.setCalibration(cal);
+        return(new Objects3DIntPopulation(ImageHandler.wrap(imgLabels)));
+    }
+}
@@ -0,0 +1,63 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+
+/**
+ * Write results of each image in image order, whatever the order in which images are finished
+ * Rows of an image are kept until the rows of all previous images have been written
+ * @author Orion-CIRB
+ */
+public class OrderedResultsWriter implements Closeable {
+    
+    private final List<ResultSink> sinks = new ArrayList<>();
+    private final Map<Integer, List<ResultRow>> pending = new HashMap<>();
+    private int next = 0;
+    
+    
+    public OrderedResultsWriter(ResultSink... sinks) {
+        for (ResultSink sink : sinks)
+            this.sinks.add(sink);
+    }
+    
+    
+    /**
+     * Add rows of image number index (starting from 0)
+     */
+    public synchronized void submit(int index, List<ResultRow> rows) throws IOException {
+        pending.put(index, rows);
+        boolean written = false;
+        while (pending.containsKey(next)) {
+            write(pending.remove(next));
+            next++;
+            written = true;
+        }
+        if (written)
+            for (ResultSink sink : sinks)
+                sink.flush();
+    }
+    
+    
+    private void write(List<ResultRow> rows) throws IOException {
+        for (ResultSink sink : sinks)
+            sink.write(rows);
+    }
+    
+    
+    @Override
+    public synchronized void close() throws IOException {
+        if (!pending.isEmpty())
+            System.out.println("WARNING: results of " + pending.size() + " images written out of order");
+        for (int index : new TreeSet<>(pending.keySet()))
+            write(pending.get(index));
+        pending.clear();
+        for (ResultSink sink : sinks)
+            sink.close();
+    }
+}
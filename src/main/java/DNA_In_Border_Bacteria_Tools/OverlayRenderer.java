@@ -0,0 +1,119 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+
+/**
+ * Draw and save overlays on background threads, so that next images are measured meanwhile
+ * Overlays wait in a bounded queue: callers wait when it is full, which also bounds the memory held by queued images.
+ * Each thread keeps its own labels buffers, reused from one overlay to the next
+ * The image given with an overlay belongs to the renderer, which closes it once the overlay is saved
+ * @author Orion-CIRB
+ */
+public class OverlayRenderer {
+
+    /**
+     * Labels buffers of a renderer thread
+     */
+    public static class Buffers {
+        private short[][] buffers = new short[0][];
+
+        /**
+         * Buffer number index, of size pixels
+         */
+        public short[] get(int index, int size) {
+            if (index >= buffers.length) {
+                short[][] more = new short[index + 1][];
+                System.arraycopy(buffers, 0, more, 0, buffers.length);
+                buffers = more;
+            }
+            if (buffers[index] == null || buffers[index].length != size)
+                buffers[index] = new short[size];
+            return buffers[index];
+        }
+    }
+
+    public interface Drawing {
+        void draw(Buffers buffers) throws IOException;
+    }
+
+    private static class Overlay {
+        final ImagePlus img;
+        final Drawing drawing;
+        final ImageMetrics metrics;
+        final Consumer<Exception> done;
+
+        Overlay(ImagePlus img, Drawing drawing, ImageMetrics metrics, Consumer<Exception> done) {
+            this.img = img;
+            this.drawing = drawing;
+            this.metrics = metrics;
+            this.done = done;
+        }
+    }
+
+    // Stops a thread
+    private static final Overlay END = new Overlay(null, null, null, null);
+
+    private final Tools tools;
+    private final BlockingQueue<Overlay> queue;
+    private final Thread[] threads;
+
+
+    public OverlayRenderer(Tools tools, int nThreads, int queueSize) {
+        this.tools = tools;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        threads = new Thread[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            threads[i] = new Thread(this::render, "dna-border-overlays-" + (i+1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+
+    /**
+     * Queue an overlay, done is called with null or the error once it is saved
+     * @param img image closed once the overlay is saved, or null
+     */
+    public void submit(ImagePlus img, Drawing drawing, ImageMetrics metrics, Consumer<Exception> done) throws InterruptedException {
+        queue.put(new Overlay(img, drawing, metrics, done));
+    }
+
+
+    private void render() {
+        Buffers buffers = new Buffers();
+        try {
+            for (Overlay o = queue.take(); o != END; o = queue.take()) {
+                Exception error = null;
+                ImageMetrics.Timer t = o.metrics.time("draw");
+                try {
+                    o.drawing.draw(buffers);
+                } catch (Exception ex) {
+                    error = ex;
+                } finally {
+                    t.close();
+                    if (o.img != null)
+                        tools.flush_close(o.img);
+                }
+                o.done.accept(error);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Draw all queued overlays and stop threads
+     */
+    public void close() throws InterruptedException {
+        for (Thread t : threads)
+            queue.put(END);
+        for (Thread t : threads)
+            t.join();
+    }
+}
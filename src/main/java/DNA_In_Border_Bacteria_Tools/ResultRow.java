@@ -0,0 +1,62 @@
+package DNA_In_Border_Bacteria_Tools;
+
+
+/**
+ * Measurements of one bacterium, in one frame (from 1) for time-lapse runs
+ * Rows of runs without time-lapse have frame 0 and no Frame column
+ * DNA intensities are NaN when the bacterium has no inside after erosion
+ * @author Orion-CIRB
+ */
+public class ResultRow {
+
+    public static final String HEADER = "Image name\tBacterium ID\tBacterium area (µm2)\tBacterium length (µm)\t" +
+            "DNA mean intensity inside bacterium\tDNA mean intensity in bacterium edges";
+    // Header of time-lapse runs
+    public static final String FRAMES_HEADER = HEADER.replaceFirst("\t", "\tFrame\t");
+
+    public final String image;
+    public final int frame;
+    public final int id;
+    public final double area;
+    public final double length;
+    public final double insideIntensity;
+    public final double borderIntensity;
+
+
+    public ResultRow(String image, int frame, int id, double area, double length, double insideIntensity, double borderIntensity) {
+        this.image = image;
+        this.frame = frame;
+        this.id = id;
+        this.area = area;
+        this.length = length;
+        this.insideIntensity = insideIntensity;
+        this.borderIntensity = borderIntensity;
+    }
+
+
+    /**
+     * Tab-separated line of results.xls, without end of line
+     */
+    public String toTsv() {
+        String row = image + (frame > 0 ? "\t" + frame : "") + "\t" + (float) id + "\t" + area + "\t" + length;
+        if (!Double.isNaN(insideIntensity))
+            row += "\t" + insideIntensity + "\t" + borderIntensity;
+        return(row);
+    }
+
+
+    /**
+     * Read back a line written by toTsv, frame is 0 for lines without frame (4 or 6 fields)
+     */
+    public static ResultRow parseTsv(String line) {
+        String[] f = line.split("\t");
+        if (f.length < 4 || f.length > 7)
+            throw new IllegalArgumentException("Not a result row: " + line);
+        int frame = 0, i = 1;
+        if (f.length % 2 == 1)
+            frame = Integer.parseInt(f[i++]);
+        boolean inside = f.length - i == 5;
+        return(new ResultRow(f[0], frame, (int) Float.parseFloat(f[i]), Double.parseDouble(f[i+1]), Double.parseDouble(f[i+2]),
+                inside ? Double.parseDouble(f[i+3]) : Double.NaN, inside ? Double.parseDouble(f[i+4]) : Double.NaN));
+    }
+}
@@ -0,0 +1,23 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Destination of result rows, given image after image in image order
+ * @author Orion-CIRB
+ */
+public interface ResultSink extends Closeable {
+
+    /**
+     * Write rows of the next image
+     */
+    void write(List<ResultRow> rows) throws IOException;
+
+    /**
+     * Make rows written so far durable, if the format allows reading them before close
+     */
+    void flush() throws IOException;
+}
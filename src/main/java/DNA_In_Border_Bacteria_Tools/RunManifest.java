@@ -0,0 +1,155 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Checkpoint manifest of a batch, kept in the Results folder, so that an interrupted or repeated run
+ * only analyzes images that are new, modified, failed or analyzed with other parameters
+ * manifest.tsv is appended one line per finished image (file, with #series and @frame if any, status, size, mtime, parameter hash),
+ * the last line of an image wins. Result rows of each finished image are kept in parts/ and merged
+ * back into results.xls when the image is skipped
+ * @author Orion-CIRB
+ */
+public class RunManifest {
+
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private static class Entry {
+        String status;
+        long size;
+        long mtime;
+        String params;
+    }
+
+    private final File manifestFile;
+    private final File partsDir;
+    private final String paramsHash;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final BufferedWriter writer;
+
+
+    /**
+     * Load manifest file name of outDir, or start a new one if resume is false
+     * @param params all parameters that change results, as a single string
+     */
+    public RunManifest(File outDir, String name, String params, boolean resume) throws IOException {
+        manifestFile = new File(outDir, name);
+        partsDir = new File(outDir, "parts");
+        paramsHash = hash(params);
+        if (resume && manifestFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 5 || fields[0].equals("Image"))
+                        continue;
+                    Entry e = new Entry();
+                    e.status = fields[1];
+                    e.size = Long.parseLong(fields[2]);
+                    e.mtime = Long.parseLong(fields[3]);
+                    e.params = fields[4];
+                    entries.put(fields[0], e);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IOException("Corrupted manifest " + manifestFile, ex);
+            }
+        }
+        partsDir.mkdirs();
+        boolean append = resume && manifestFile.exists();
+        writer = new BufferedWriter(new FileWriter(manifestFile, append));
+        if (!append) {
+            writer.write("Image\tStatus\tSize\tModified\tParameters\n");
+            writer.flush();
+        }
+    }
+
+
+    /**
+     * True if the image was fully analyzed with the same parameters and has not changed since
+     */
+    public synchronized boolean isDone(ImageJob job) {
+        Entry e = entries.get(job.key);
+        File f = new File(job.file);
+        return e != null && e.status.equals(DONE) && e.size == f.length() && e.mtime == f.lastModified()
+                && e.params.equals(paramsHash) && partFile(job).exists();
+    }
+
+
+    /**
+     * Result rows saved for an image
+     */
+    public List<ResultRow> readRows(ImageJob job) throws IOException {
+        List<ResultRow> rows = new ArrayList<>();
+        for (String line : Files.readAllLines(partFile(job).toPath(), StandardCharsets.UTF_8))
+            if (!line.isEmpty())
+                rows.add(ResultRow.parseTsv(line));
+        return rows;
+    }
+
+
+    /**
+     * Save result rows of an image, before it is marked as done
+     */
+    public void saveRows(ImageJob job, List<ResultRow> rows) throws IOException {
+        File tmp = new File(partsDir, job.rootName + ".tmp");
+        List<String> lines = new ArrayList<>();
+        for (ResultRow row : rows)
+            lines.add(row.toTsv());
+        Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(tmp.toPath(), partFile(job).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    /**
+     * Record the end of an image
+     */
+    public synchronized void mark(ImageJob job, String status) throws IOException {
+        File f = new File(job.file);
+        Entry e = new Entry();
+        e.status = status;
+        e.size = f.length();
+        e.mtime = f.lastModified();
+        e.params = paramsHash;
+        entries.put(job.key, e);
+        writer.write(job.key + "\t" + status + "\t" + e.size + "\t" + e.mtime + "\t" + paramsHash + "\n");
+        writer.flush();
+    }
+
+
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+
+    private File partFile(ImageJob job) {
+        return new File(partsDir, job.rootName + ".xls");
+    }
+
+
+    private static String hash(String params) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(params.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++)
+                hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
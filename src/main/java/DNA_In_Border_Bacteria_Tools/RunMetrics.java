@@ -0,0 +1,100 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Metrics of a run: one JSON line per image in metrics.jsonl (see ImageMetrics), written as soon as
+ * the image is finished, and a summary table per stage at the end of the run
+ * @author Orion-CIRB
+ */
+public class RunMetrics {
+
+    private final BufferedWriter writer;
+    private final long start = System.nanoTime();
+    private final Map<String, long[]> stages = new LinkedHashMap<>();
+    private final Map<String, Long> steps = new LinkedHashMap<>();
+    private int images = 0;
+    private int failed = 0;
+    private long bytesRead = 0;
+    private long bytesWritten = 0;
+    private long objects = 0;
+
+
+    public RunMetrics(File file) throws IOException {
+        writer = new BufferedWriter(new FileWriter(file, false));
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            pool.resetPeakUsage();
+    }
+
+
+    /**
+     * Add a finished image
+     */
+    public synchronized void record(ImageMetrics m) {
+        try {
+            writer.write(m.toJson());
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException ex) {
+            System.out.println("Can't write metrics of " + m.image + " (" + ex.getMessage() + ")");
+        }
+        synchronized (m) {
+            images++;
+            if (!m.status.equals("done"))
+                failed++;
+            for (Map.Entry<String, long[]> e : m.stages.entrySet())
+                stages.merge(e.getKey(), e.getValue().clone(), (a, b) -> new long[] {a[0] + b[0], a[1] + b[1]});
+            for (Map.Entry<String, Long> e : m.steps.entrySet())
+                steps.merge(e.getKey(), e.getValue(), Long::sum);
+            bytesRead += m.bytesRead;
+            bytesWritten += m.bytesWritten;
+            objects += m.objects;
+        }
+    }
+
+
+    /**
+     * Add time spent outside any image, as the single Omnipose call for all images
+     */
+    public synchronized void addRunStep(String step, long ns) {
+        steps.merge(step, ns, Long::sum);
+    }
+
+
+    /**
+     * Peak heap used since the run started, all heap pools
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+
+    /**
+     * Print time spent per stage and totals, then close the metrics file
+     */
+    public synchronized void close() throws IOException {
+        writer.close();
+        double wall = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-12s %12s %12s %14s", "Stage", "Wall (s)", "CPU (s)", "Wall/image (s)"));
+        for (Map.Entry<String, long[]> e : stages.entrySet())
+            System.out.println(String.format("%-12s %12.1f %12.1f %14.2f", e.getKey(), e.getValue()[0] / 1e9, e.getValue()[1] / 1e9,
+                    images > 0 ? e.getValue()[0] / 1e9 / images : 0));
+        for (Map.Entry<String, Long> e : steps.entrySet())
+            System.out.println(String.format("  %-10s %12.1f", e.getKey(), e.getValue() / 1e9));
+        System.out.println(String.format("%d images (%d failed), %d bacteria, %d MB read, %d MB written, peak heap %d MB, total %.1f s",
+                images, failed, objects, bytesRead >> 20, bytesWritten >> 20, peakHeap() >> 20, wall));
+    }
+}
@@ -0,0 +1,232 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * On-disk cache of Omnipose label masks
+ * A mask is stored under the SHA-256 of the segmented image pixels and of the Omnipose settings,
+ * so that re-running on the same images with other size or erosion parameters skips Omnipose
+ * Masks are saved as gzipped 16-bit labels; least recently used ones are deleted when the cache grows over maxBytes
+ * The cache size is counted as masks are stored, the folder is only listed at startup and when evicting
+ * @author Orion-CIRB
+ */
+public class SegmentationCache {
+
+    private static final int MAGIC = 0x4d41534b;
+    // Eviction frees space down to this fraction of maxBytes, so that it is not run again on the next masks
+    private static final double EVICT_TO = 0.9;
+
+    private final File dir;
+    private final long maxBytes;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger evictions = new AtomicInteger();
+    private final AtomicLong size = new AtomicLong();
+
+
+    public SegmentationCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        long total = 0;
+        for (File f : maskFiles())
+            total += f.length();
+        size.set(total);
+    }
+
+
+    /**
+     * Cache key of an image segmented with the given settings
+     */
+    public static String key(ImagePlus img, String settingsKey) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        digest.update(settingsKey.getBytes(StandardCharsets.UTF_8));
+        ImageProcessor ip = img.getProcessor();
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ip.getWidth()).putInt(ip.getHeight()).putInt(ip.getBitDepth());
+        digest.update(header.array());
+
+        // Pixels are hashed by chunks of a little-endian buffer
+        Object pixels = ip.getPixels();
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        if (pixels instanceof byte[]) {
+            digest.update((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            short[] px = (short[]) pixels;
+            for (int i = 0; i < px.length; i += buf.capacity()/2) {
+                int n = Math.min(buf.capacity()/2, px.length - i);
+                buf.clear();
+                buf.asShortBuffer().put(px, i, n);
+                digest.update(buf.array(), 0, 2*n);
+            }
+        } else if (pixels instanceof float[]) {
+            float[] px = (float[]) pixels;
+            for (int i = 0; i < px.length; i += buf.capacity()/4) {
+                int n = Math.min(buf.capacity()/4, px.length - i);
+                buf.clear();
+                buf.asFloatBuffer().put(px, i, n);
+                digest.update(buf.array(), 0, 4*n);
+            }
+        } else {
+            int[] px = (int[]) pixels;
+            for (int i = 0; i < px.length; i += buf.capacity()/4) {
+                int n = Math.min(buf.capacity()/4, px.length - i);
+                buf.clear();
+                buf.asIntBuffer().put(px, i, n);
+                digest.update(buf.array(), 0, 4*n);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return(hex.toString());
+    }
+
+
+    /**
+     * Cached mask, or null if this image was never segmented with these settings
+     */
+    public ImagePlus get(String key) {
+        File file = file(key);
+        ImagePlus mask = null;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)), 1 << 16))) {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("not a mask file");
+                int width = in.readInt();
+                int height = in.readInt();
+                byte[] buf = new byte[2 * width * height];
+                in.readFully(buf);
+                short[] labels = new short[width * height];
+                ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(labels);
+                mask = new ImagePlus(key, new ShortProcessor(width, height, labels, null));
+            } catch (IOException ex) {
+                System.out.println("Can't read cached mask " + file.getName() + " (" + ex.getMessage() + ")");
+                long length = file.length();
+                if (file.delete())
+                    size.addAndGet(-length);
+            }
+        }
+        if (mask == null) {
+            misses.incrementAndGet();
+            return(null);
+        }
+        // Mark as recently used
+        file.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return(mask);
+    }
+
+
+    /**
+     * Store a mask, then evict least recently used ones if the cache is too large
+     */
+    public void put(String key, ImagePlus mask) {
+        ImageProcessor ip = mask.getProcessor();
+        short[] labels = (short[]) (ip instanceof ShortProcessor ? ip : ip.convertToShort(false)).getPixels();
+        File tmp = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(ip.getWidth());
+            out.writeInt(ip.getHeight());
+            ByteBuffer buf = ByteBuffer.allocate(2 * labels.length).order(ByteOrder.LITTLE_ENDIAN);
+            buf.asShortBuffer().put(labels);
+            out.write(buf.array());
+        } catch (IOException ex) {
+            System.out.println("Can't cache mask " + key + " (" + ex.getMessage() + ")");
+            tmp.delete();
+            return;
+        }
+        File file = file(key);
+        long previous = file.length();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return;
+        }
+        if (size.addAndGet(file.length() - previous) > maxBytes)
+            evict();
+    }
+
+
+    /**
+     * Delete least recently used masks, the folder is listed again as other runs may share it
+     */
+    private synchronized void evict() {
+        File[] files = maskFiles();
+        long total = 0;
+        for (File f : files)
+            total += f.length();
+        if (total > maxBytes) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (int i = 0; i < files.length && total > maxBytes * EVICT_TO; i++) {
+                long length = files[i].length();
+                if (files[i].delete()) {
+                    total -= length;
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+        size.set(total);
+    }
+
+
+    private File[] maskFiles() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".mask"));
+        return(files == null ? new File[0] : files);
+    }
+
+
+    private File file(String key) {
+        return(new File(dir, key + ".mask"));
+    }
+
+
+    public int getHits() {
+        return(hits.get());
+    }
+
+
+    public int getMisses() {
+        return(misses.get());
+    }
+
+
+    /**
+     * Print cache hits and misses
+     */
+    public void printStats() {
+        int total = hits.get() + misses.get();
+        if (total == 0)
+            return;
+        System.out.println("Omnipose mask cache: " + hits.get() + " hits, " + misses.get() + " misses (" +
+                Math.round(100.0 * hits.get() / total) + "% hits), " + evictions.get() + " masks evicted");
+    }
+}
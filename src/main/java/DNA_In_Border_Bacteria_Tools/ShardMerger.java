@@ -0,0 +1,136 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Merge partial results of all shards (results_shard<i>of<N>.xls) into a single results.xls
+ * Rows are sorted by image, in the order of the sorted image list, so the table is the same as
+ * with a single run whatever the number of shards. Bacterium IDs are numbered per image and are kept
+ * The merged table can also be written as binary columns. It has a Frame column if a shard has one,
+ * rows of shards without time-lapse being frame 1
+ * @author Orion-CIRB
+ */
+public class ShardMerger {
+
+    private static final Pattern SHARD_FILE = Pattern.compile("results_shard(\\d+)of(\\d+)\\.xls");
+
+    private final File outDir;
+    private int missingShards = 0;
+
+
+    public ShardMerger(File outDir) {
+        this.outDir = outDir;
+    }
+
+
+    /**
+     * Number of shards without results file at last merge
+     */
+    public int getMissingShards() {
+        return(missingShards);
+    }
+
+
+    /**
+     * Merge shard results
+     * @param imageFiles sorted list of all images of the folder
+     * @return number of rows written
+     * @throws java.io.IOException
+     */
+    public int merge(List<String> imageFiles, boolean binary) throws IOException {
+        File[] files = outDir.listFiles((dir, name) -> SHARD_FILE.matcher(name).matches());
+        if (files == null || files.length == 0)
+            throw new IOException("No shard results found in " + outDir);
+
+        // Rows of each image, in the order they were written
+        int nShards = 0;
+        boolean[] found = new boolean[0];
+        Map<String, List<String>> rows = new HashMap<>();
+        boolean frames = false;
+        for (File f : files) {
+            Matcher m = SHARD_FILE.matcher(f.getName());
+            m.matches();
+            int n = Integer.parseInt(m.group(2));
+            if (nShards == 0) {
+                nShards = n;
+                found = new boolean[n];
+            } else if (n != nShards) {
+                throw new IOException("Shard results of " + nShards + " and " + n + " shards found in " + outDir);
+            }
+            int shard = Integer.parseInt(m.group(1));
+            if (shard >= nShards)
+                throw new IOException("Unexpected shard results " + f.getName());
+            found[shard] = true;
+            try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+                // Skip header
+                String line = reader.readLine();
+                if (line != null && line.equals(ResultRow.FRAMES_HEADER))
+                    frames = true;
+                for (line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (line.isEmpty())
+                        continue;
+                    String image = line.substring(0, Math.max(0, line.indexOf('\t')));
+                    rows.computeIfAbsent(image, k -> new ArrayList<>()).add(line);
+                }
+            }
+        }
+        missingShards = 0;
+        for (int s = 0; s < nShards; s++) {
+            if (!found[s]) {
+                System.out.println("WARNING: no results for shard " + s + "/" + nShards);
+                missingShards++;
+            }
+        }
+
+        // Images of the folder first, in order with their series, then rows of images no more in the folder
+        // Series without bacteria have no rows, so series are sorted by their number rather than counted
+        Map<String, List<String>> ordered = new LinkedHashMap<>();
+        for (String file : imageFiles) {
+            String name = FilenameUtils.getBaseName(file);
+            if (rows.containsKey(name))
+                ordered.put(name, rows.remove(name));
+            Pattern series = Pattern.compile(Pattern.quote(name + "_s") + "(\\d+)");
+            rows.keySet().stream()
+                    .filter(image -> series.matcher(image).matches())
+                    .sorted(Comparator.comparingLong(image -> Long.parseLong(image.substring(name.length() + 2))))
+                    .collect(Collectors.toList())
+                    .forEach(image -> ordered.put(image, rows.remove(image)));
+        }
+        rows.keySet().stream().sorted().forEach(name -> ordered.put(name, rows.get(name)));
+
+        int nRows = 0;
+        OrderedResultsWriter writer = new OrderedResultsWriter(BatchRunner.resultSinks(outDir, "results", binary, frames));
+        try {
+            int index = 0;
+            for (List<String> imageRows : ordered.values()) {
+                List<ResultRow> parsed = new ArrayList<>();
+                for (String row : imageRows) {
+                    ResultRow r = ResultRow.parseTsv(row);
+                    if (frames && r.frame == 0)
+                        r = new ResultRow(r.image, 1, r.id, r.area, r.length, r.insideIntensity, r.borderIntensity);
+                    parsed.add(r);
+                }
+                writer.submit(index++, parsed);
+                nRows += parsed.size();
+            }
+        } finally {
+            writer.close();
+        }
+        System.out.println(nRows + " rows of " + ordered.size() + " images merged from " + (nShards - missingShards) + "/" + nShards + " shards");
+        return(nRows);
+    }
+}
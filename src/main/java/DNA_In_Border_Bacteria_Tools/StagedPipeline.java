@@ -0,0 +1,168 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Run images through three stages connected by bounded queues:
+ * loading (Bio-Formats decoding + projection), segmentation (Omnipose) and measurement (results + images)
+ * so that the next images are decoded while Omnipose runs on the current one
+ * Each stage has its own threads; queue depth and busy time are recorded per stage to size them
+ * @author Orion-CIRB
+ */
+public class StagedPipeline {
+
+    // Marks the end of the images in a queue
+    private static final ImageJob END = new ImageJob(-1, "");
+
+    interface StageStep {
+        void process(ImageJob job) throws Exception;
+    }
+
+
+    /**
+     * One stage of the pipeline, reading images from its input queue
+     */
+    public static class Stage {
+        public final String name;
+        public final int nThreads;
+        final BlockingQueue<ImageJob> input;
+        final StageStep step;
+        Stage next;
+
+        final AtomicInteger running;
+        final AtomicLong busyTime = new AtomicLong();
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger maxDepth = new AtomicInteger();
+
+        Stage(String name, int nThreads, int queueSize, StageStep step) {
+            this.name = name;
+            this.nThreads = nThreads;
+            this.input = new ArrayBlockingQueue<>(queueSize);
+            this.step = step;
+            this.running = new AtomicInteger(nThreads);
+        }
+
+        void put(ImageJob job) throws InterruptedException {
+            input.put(job);
+            maxDepth.accumulateAndGet(input.size(), Math::max);
+        }
+
+        /** Number of images waiting for this stage */
+        public int getQueueDepth() {
+            return input.size();
+        }
+
+        public int getMaxQueueDepth() {
+            return maxDepth.get();
+        }
+
+        /** Time spent processing images by all threads of the stage, in ns */
+        public long getBusyTime() {
+            return busyTime.get();
+        }
+
+        public int getProcessed() {
+            return processed.get();
+        }
+    }
+
+
+    private final BatchEngine engine;
+    private final List<Stage> stages = new ArrayList<>();
+    private long wallTime = 0;
+
+
+    public StagedPipeline(BatchEngine engine, int loadThreads, int segmentThreads, int measureThreads, int queueSize) {
+        this.engine = engine;
+        stages.add(new Stage("Loading", loadThreads, queueSize, engine::load));
+        stages.add(new Stage("Segmentation", segmentThreads, queueSize, engine::segment));
+        stages.add(new Stage("Measurement", measureThreads, queueSize, engine::measure));
+        for (int s = 0; s < stages.size()-1; s++)
+            stages.get(s).next = stages.get(s+1);
+    }
+
+
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+
+    /**
+     * Process all images and wait for the last one
+     */
+    public void run(List<ImageJob> jobs) throws InterruptedException {
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (Stage stage : stages) {
+            for (int t = 0; t < stage.nThreads; t++) {
+                Thread thread = new Thread(() -> work(stage), "dna-border-" + stage.name.toLowerCase() + "-" + (t+1));
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        Stage first = stages.get(0);
+        try {
+            for (ImageJob job : jobs)
+                first.put(job);
+            for (int t = 0; t < first.nThreads; t++)
+                first.put(END);
+            for (Thread thread : threads)
+                thread.join();
+        } finally {
+            for (Thread thread : threads)
+                thread.interrupt();
+            wallTime = System.nanoTime() - start;
+        }
+        printStats();
+    }
+
+
+    private void work(Stage stage) {
+        try {
+            for (ImageJob job = stage.input.take(); job != END; job = stage.input.take()) {
+                long start = System.nanoTime();
+                try {
+                    stage.step.process(job);
+                } catch (Exception ex) {
+                    engine.failed(job, ex);
+                    continue;
+                } finally {
+                    stage.busyTime.addAndGet(System.nanoTime() - start);
+                }
+                stage.processed.incrementAndGet();
+                if (stage.next != null)
+                    stage.next.put(job);
+            }
+            // Last thread of the stage tells the next stage that all images are done
+            if (stage.running.decrementAndGet() == 0 && stage.next != null) {
+                for (int t = 0; t < stage.next.nThreads; t++)
+                    stage.next.put(END);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Print time spent in each stage
+     */
+    public void printStats() {
+        System.out.println(String.format("%-14s %8s %8s %10s %8s %10s", "Stage", "Threads", "Images", "Busy (s)", "Usage", "Max queue"));
+        for (Stage stage : stages) {
+            double busy = stage.getBusyTime() / 1e9;
+            double usage = wallTime > 0 ? stage.getBusyTime() / ((double) wallTime * stage.nThreads) : 0;
+            System.out.println(String.format("%-14s %8d %8d %10.1f %7.0f%% %10d", stage.name, stage.nThreads, stage.getProcessed(),
+                    busy, usage*100, stage.getMaxQueueDepth()));
+        }
+        System.out.println(String.format("Total time: %.1f s", wallTime / 1e9));
+    }
+}
@@ -0,0 +1,148 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import loci.formats.FormatException;
+
+
+/**
+ * Focused Z projection of planes received one at a time, as they are decoded
+ * Each plane is scored on arrival. Only planes that can still be selected (at least percent % of the best score
+ * seen so far) are buffered, and at most maxBuffered of them; the others are dropped. Once all planes are scored,
+ * selected planes that were dropped from the buffer are requested again (second pass) before projecting,
+ * so the result is the same as projecting the focused slices of the whole stack
+ * @author Orion-CIRB
+ */
+public class StreamingProjector {
+
+    private static class Candidate {
+        final int slice;
+        final double score;
+        ImageProcessor ip;
+
+        Candidate(int slice, double score, ImageProcessor ip) {
+            this.slice = slice;
+            this.score = score;
+            this.ip = ip;
+        }
+    }
+
+    interface PlaneSource {
+        ImageProcessor read(int slice) throws FormatException, IOException;
+    }
+
+    private final Find_focused_slices focus;
+    private final int method;
+    private final int maxBuffered;
+    private final double[] scores;
+    private final List<Candidate> candidates = new ArrayList<>();
+    private double vMax = 0;
+    private int buffered = 0;
+    private int reread = 0;
+
+
+    public StreamingProjector(Find_focused_slices focus, int method, int nSlices, int maxBuffered) {
+        this.focus = focus;
+        this.method = method;
+        this.maxBuffered = maxBuffered;
+        this.scores = new double[nSlices];
+    }
+
+
+    /**
+     * Score a plane (slice numbered from 1) and keep it if it may be selected
+     */
+    public void add(int slice, ImageProcessor ip) {
+        long start = System.nanoTime();
+        double score = focus.calVar(ip);
+        ImageMetrics.addTime("focus", System.nanoTime() - start);
+        scores[slice - 1] = score;
+        if (score > vMax) {
+            vMax = score;
+            // Drop candidates that can no more be selected
+            candidates.removeIf(c -> {
+                if (mayBeSelected(c.score))
+                    return false;
+                if (c.ip != null)
+                    buffered--;
+                return true;
+            });
+        }
+        if (!mayBeSelected(score))
+            return;
+
+        Candidate candidate = new Candidate(slice, score, ip);
+        if (buffered == maxBuffered) {
+            // Buffer full: keep pixels of the best scored planes only
+            Candidate worst = null;
+            for (Candidate c : candidates)
+                if (c.ip != null && (worst == null || c.score < worst.score))
+                    worst = c;
+            if (worst != null && worst.score < score) {
+                worst.ip = null;
+                buffered--;
+            } else {
+                candidate.ip = null;
+            }
+        }
+        if (candidate.ip != null)
+            buffered++;
+        candidates.add(candidate);
+    }
+
+
+    private boolean mayBeSelected(double score) {
+        return score / vMax >= focus.percent / 100 && score > focus.vThr;
+    }
+
+
+    /**
+     * Number of planes held in the buffer
+     */
+    int getBufferedCount() {
+        return buffered;
+    }
+
+
+    /**
+     * Number of planes read a second time
+     */
+    public int getRereadCount() {
+        return reread;
+    }
+
+
+    /**
+     * Project the focused planes, reading again from source those that were not kept in the buffer
+     */
+    public ImagePlus getProjection(String title, Calibration cal, PlaneSource source) throws FormatException, IOException {
+        int[] slices = scores.length == 1 ? new int[] {1} : focus.selectSlices(scores);
+        if (slices == null)
+            throw new IllegalStateException("All slices of " + title + " are below the variance threshold value");
+
+        FocusedProjector projector = null;
+        for (int slice : slices) {
+            ImageProcessor ip = null;
+            for (Candidate c : candidates)
+                if (c.slice == slice)
+                    ip = c.ip;
+            if (ip == null) {
+                ip = source.read(slice);
+                reread++;
+            }
+            if (projector == null)
+                projector = new FocusedProjector(method, ip.getWidth(), ip.getHeight());
+            projector.add(ip);
+        }
+        candidates.clear();
+        buffered = 0;
+
+        ImagePlus proj = new ImagePlus(FocusedProjector.title(method, title), projector.getProjection());
+        proj.setCalibration(cal);
+        return proj;
+    }
+}
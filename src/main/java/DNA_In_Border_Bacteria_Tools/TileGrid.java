@@ -0,0 +1,138 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+
+
+/**
+ * Overlapping tiles of a large image, segmented separately and stitched back into a single label mask
+ * Tiles of tileSize pixels overlap their neighbours by overlap pixels. Each tile owns the bacteria whose centroid
+ * lies in its core, the part of the tile closer to its centre than to its neighbours' ones, so that a bacterium
+ * seen by several tiles is kept once. Owned bacteria cut by an inner edge of their tile are dropped:
+ * overlap should be larger than the longest bacteria.
+ * Bacteria touching the image borders are kept, to be removed with the others by LabelObjects.filterMask
+ * @author Orion-CIRB
+ */
+public class TileGrid {
+
+    public final int width;
+    public final int height;
+    private final int tileSize;
+    private final int overlap;
+    private final int nx;
+    private final int ny;
+
+
+    public TileGrid(int width, int height, int tileSize, int overlap) {
+        if (overlap < 0 || overlap >= tileSize)
+            throw new IllegalArgumentException("Tile overlap must be between 0 and tile size");
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        nx = count(width);
+        ny = count(height);
+    }
+
+
+    /**
+     * Number of tiles along a side, the last tile ending on the image border
+     */
+    private int count(int length) {
+        int step = tileSize - overlap;
+        return(Math.max(1, (length - overlap + step - 1) / step));
+    }
+
+
+    /**
+     * Number of tiles
+     */
+    public int size() {
+        return(nx*ny);
+    }
+
+
+    /**
+     * Tile i, in raster order
+     */
+    public Rectangle tile(int i) {
+        int step = tileSize - overlap;
+        int x = (i % nx) * step;
+        int y = (i / nx) * step;
+        return(new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+    }
+
+
+    /**
+     * Core of tile i: from the middle of the overlap with the previous tile to the middle of the overlap with the next one
+     */
+    private Rectangle core(int i) {
+        int step = tileSize - overlap;
+        int tx = i % nx, ty = i / nx;
+        int x0 = tx == 0 ? 0 : tx*step + overlap/2;
+        int y0 = ty == 0 ? 0 : ty*step + overlap/2;
+        int x1 = tx == nx-1 ? width : (tx+1)*step + overlap/2;
+        int y1 = ty == ny-1 ? height : (ty+1)*step + overlap/2;
+        return(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+    }
+
+
+    /**
+     * Paste the bacteria owned by tile i from its label mask into the stitched mask (width x height), with labels from nextLabel
+     * Labels are ints, a stitched image may hold more than 65535 bacteria
+     * Pixels already set by a previous tile are kept
+     * @return next free label
+     */
+    public int paste(ImageProcessor tileMask, int i, int[] stitched, int nextLabel) {
+        Rectangle tile = tile(i);
+        Rectangle core = core(i);
+        ImageProcessor mask = tileMask.getBitDepth() == 16 ? tileMask : tileMask.convertToShort(false);
+        short[] labels = (short[]) mask.getPixels();
+        int tw = mask.getWidth(), th = mask.getHeight();
+
+        // Pixel count, centroid and cut by an inner tile edge of each label, in one scan
+        int maxLabel = 0;
+        for (short l : labels)
+            maxLabel = Math.max(maxLabel, l & 0xffff);
+        int[] counts = new int[maxLabel + 1];
+        long[] sumX = new long[maxLabel + 1], sumY = new long[maxLabel + 1];
+        boolean[] cut = new boolean[maxLabel + 1];
+        boolean innerLeft = tile.x > 0, innerTop = tile.y > 0;
+        boolean innerRight = tile.x + tw < width, innerBottom = tile.y + th < height;
+        for (int y = 0, p = 0; y < th; y++) {
+            boolean cutRow = (innerTop && y == 0) || (innerBottom && y == th-1);
+            for (int x = 0; x < tw; x++, p++) {
+                int label = labels[p] & 0xffff;
+                if (label == 0)
+                    continue;
+                counts[label]++;
+                sumX[label] += x;
+                sumY[label] += y;
+                if (cutRow || (innerLeft && x == 0) || (innerRight && x == tw-1))
+                    cut[label] = true;
+            }
+        }
+
+        // Labels of owned bacteria in the stitched mask, 0 for others
+        int[] newLabels = new int[maxLabel + 1];
+        for (int l = 1; l <= maxLabel; l++) {
+            if (counts[l] == 0 || cut[l])
+                continue;
+            int cx = tile.x + (int) (sumX[l] / counts[l]);
+            int cy = tile.y + (int) (sumY[l] / counts[l]);
+            if (!core.contains(cx, cy))
+                continue;
+            newLabels[l] = nextLabel++;
+        }
+
+        for (int y = 0, p = 0; y < th; y++) {
+            int offset = (tile.y + y) * width + tile.x;
+            for (int x = 0; x < tw; x++, p++) {
+                int label = newLabels[labels[p] & 0xffff];
+                if (label != 0 && stitched[offset + x] == 0)
+                    stitched[offset + x] = label;
+            }
+        }
+        return(nextLabel);
+    }
+}
@@ -1,41 +1,52 @@
 package DNA_In_Border_Bacteria_Tools;
 
 import DNA_In_Border_Bacteria.Cellpose.CellposeTaskSettings;
+import DNA_In_Border_Bacteria.Cellpose.CellposeSegmentBatch;
 import DNA_In_Border_Bacteria.Cellpose.CellposeSegmentImgPlusAdvanced;
+import DNA_In_Border_Bacteria.Cellpose.CellposeWorker;
+import ij.CompositeImage;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.plugin.Duplicator;
 import fiji.util.gui.GenericDialogPlus;
-import ij.plugin.RGBStackMerge;
+import ij.plugin.LutLoader;
 import ij.plugin.ZProjector;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
 import java.awt.Color;
 import java.awt.Font;
-import java.io.BufferedWriter;
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import javax.swing.ImageIcon;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
 import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
 import loci.plugins.util.ImageProcessorReader;
-import mcib3d.geom2.Object3DComputation;
-import mcib3d.geom2.Object3DInt;
-import mcib3d.geom2.Object3DIntLabelImage;
-import mcib3d.geom2.Objects3DIntPopulation;
-import mcib3d.geom2.Objects3DIntPopulationComputation;
-import mcib3d.geom2.VoxelInt;
-import mcib3d.geom2.measurements.MeasureFeret;
-import mcib3d.geom2.measurements.MeasureIntensity;
-import mcib3d.geom2.measurements.MeasureVolume;
-import mcib3d.image3d.ImageHandler;
-import mcib3d.image3d.processing.BinaryMorpho;
-import mcib3d.image3d.processing.FastFilters3D;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
 import org.apache.commons.io.FilenameUtils;
 
 
@@ -43,27 +54,65 @@ import org.apache.commons.io.FilenameUtils;
  * @author Orion-CIRB
  */
 public class Tools {
-    private final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
+    // Loaded with the dialog only, so that Tools can be used headless
+    private ImageIcon icon = null;
       
     public Calibration cal = new Calibration();
-    private double pixelSurf = 0;
+    // Calibration read in each series, cal being used for series without one
+    private boolean seriesCalib = true;
     String[] channelsName = {"Bacteria: ", "DNA: "};
     
      // Omnipose
     private String omniposeEnvDirPath = IJ.isWindows()? System.getProperty("user.home")+"\\miniconda3\\envs\\omnipose" : "/opt/miniconda3/envs/omnipose";
     private String omniposeModelsPath = IJ.isWindows()? System.getProperty("user.home")+"\\.cellpose\\models\\": System.getProperty("user.home")+"/.cellpose/models/";
+    private String omniposeEnvType = "conda";
     private String omniposeModel = "bact_phase_omnitorch_0";
     private int omniposeDiameter = 0;
     private int omniposeMaskThreshold = 0;
     private double omniposeFlowThreshold = 0;
     private boolean useGpu = true;
+    // Worker segmentation timeout, in s per megapixel
+    private int omniposeTimeout = 120;
+    public final String[] omniposeModes = {"Persistent worker", "One call per image", "Single call for all images"};
+    // Read outside the lock by segmentation threads
+    private volatile String omniposeMode = omniposeModes[0];
+    private CellposeWorker omniposeWorker = null;
+    private CellposeSegmentBatch omniposeBatch = null;
+    private File dnaBatchDir = null;
+    private boolean useMaskCache = true;
+    private File maskCacheDir = new File(System.getProperty("user.home"), ".dna_in_border_bacteria" + File.separator + "masks");
+    private long maskCacheMaxBytes = 2L << 30;
+    private SegmentationCache maskCache = null;
+    private final Map<String, ImagePlus> batchCachedMasks = new HashMap<>();
+    // Images wider or higher than tileSize pixels are segmented in tiles, none if 0
+    private int tileSize = 0;
+    private int tileOverlap = 128;
     
     // Bacteria
     private double minBactSurface = 1;
     private double maxBactSurface = 20;
     private float bactErosion = 0.4f;
     
-    private final Find_focused_slices focus = new Find_focused_slices();
+    // Processing
+    private int nThreads = Runtime.getRuntime().availableProcessors();
+    public final String[] processingModes = {"Parallel images", "Staged pipeline"};
+    private String processingMode = processingModes[0];
+    private boolean streamPlanes = true;
+    private int maxBufferedPlanes = 16;
+    private boolean resumeRun = true;
+    public final String[] resultFormats = {"Table (.xls)", "Table (.xls) + binary columns (.bin)"};
+    private String resultFormat = resultFormats[0];
+    // Results writer thread: images queued before callers wait, rows and ms before a flush
+    private int resultsQueue = 256;
+    private int resultsFlushRows = 10000;
+    private long resultsFlushMillis = 2000;
+    // Overlays of one image out of overlaysEvery, none if 0
+    private int overlaysEvery = 1;
+    public final String[] overlayFormats = {"Composite images", "Label masks"};
+    private String overlayFormat = overlayFormats[0];
+    public final String[] overlayCompressions = {"None", "LZW", "Deflate"};
+    private String overlayCompression = overlayCompressions[0];
+    private LUT labelsLut = null;
     
     /**
      * Display a message in the ImageJ console and status bar
@@ -147,7 +196,7 @@ public class Tools {
             System.out.println("No image found in " + imagesFolder);
             return null;
         }
-        ArrayList<String> images = new ArrayList();
+        ArrayList<String> images = new ArrayList<>();
         for (String f : files) {
             // Find images with extension
             String fileExt = FilenameUtils.getExtension(f);
@@ -159,6 +208,16 @@ public class Tools {
     }
 
     
+    /**
+     * Create a reader filling its own OME-XML metadata store
+     */
+    public ImageProcessorReader newReader() {
+        ImageProcessorReader reader = new ImageProcessorReader();
+        reader.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+        return(reader);
+    }
+    
+    
     /**
      * Find image calibration
      * @param meta
@@ -177,13 +236,26 @@ public class Tools {
     
     
     /**
-     * Find channels name
+     * Calibration of the current series of the reader, or the given calibration if not read in series or missing
+     */
+    public Calibration seriesCalib(ImageProcessorReader reader) {
+        Calibration seriesCal = cal.copy();
+        IMetadata meta = (IMetadata) reader.getMetadataStore();
+        if (seriesCalib && meta.getPixelsPhysicalSizeX(reader.getSeries()) != null)
+            seriesCal.pixelWidth = seriesCal.pixelHeight = meta.getPixelsPhysicalSizeX(reader.getSeries()).value().doubleValue();
+        return(seriesCal);
+    }
+    
+    
+    /**
+     * Find channels name of the current series
      * @throws loci.common.services.DependencyException
      * @throws loci.common.services.ServiceException
      * @throws loci.formats.FormatException
      * @throws java.io.IOException
      */
     public String[] findChannels (String imageName, IMetadata meta, ImageProcessorReader reader) throws DependencyException, ServiceException, FormatException, IOException {
+        int series = reader.getSeries();
         int chs = reader.getSizeC();
         String[] channels = new String[chs];
         String imageExt =  FilenameUtils.getExtension(imageName);
@@ -191,48 +263,48 @@ public class Tools {
             case "nd" :
                 for (int n = 0; n < chs; n++) 
                 {
-                    if (meta.getChannelID(0, n) == null)
+                    if (meta.getChannelID(series, n) == null)
                         channels[n] = Integer.toString(n);
                     else 
-                        channels[n] = meta.getChannelName(0, n);
+                        channels[n] = meta.getChannelName(series, n);
                 }
                 break;
             case "nd2" :
                 for (int n = 0; n < chs; n++) 
                 {
-                    if (meta.getChannelID(0, n) == null)
+                    if (meta.getChannelID(series, n) == null)
                         channels[n] = Integer.toString(n);
                     else 
-                        channels[n] = meta.getChannelName(0, n);
+                        channels[n] = meta.getChannelName(series, n);
                 }
                 break;
             case "lif" :
                 for (int n = 0; n < chs; n++) 
-                    if (meta.getChannelID(0, n) == null || meta.getChannelName(0, n) == null)
+                    if (meta.getChannelID(series, n) == null || meta.getChannelName(series, n) == null)
                         channels[n] = Integer.toString(n);
                     else 
-                        channels[n] = meta.getChannelName(0, n);
+                        channels[n] = meta.getChannelName(series, n);
                 break;
             case "czi" :
                 for (int n = 0; n < chs; n++) 
-                    if (meta.getChannelID(0, n) == null)
+                    if (meta.getChannelID(series, n) == null)
                         channels[n] = Integer.toString(n);
                     else 
-                        channels[n] = meta.getChannelFluor(0, n);
+                        channels[n] = meta.getChannelFluor(series, n);
                 break;
             case "ics" :
                 for (int n = 0; n < chs; n++) 
-                    if (meta.getChannelID(0, n) == null)
+                    if (meta.getChannelID(series, n) == null)
                         channels[n] = Integer.toString(n);
                     else 
-                        channels[n] = meta.getChannelExcitationWavelength(0, n).value().toString();
+                        channels[n] = meta.getChannelExcitationWavelength(series, n).value().toString();
                 break;
             case "ics2" :
                 for (int n = 0; n < chs; n++) 
-                    if (meta.getChannelID(0, n) == null)
+                    if (meta.getChannelID(series, n) == null)
                         channels[n] = Integer.toString(n);
                     else 
-                        channels[n] = meta.getChannelExcitationWavelength(0, n).value().toString();
+                        channels[n] = meta.getChannelExcitationWavelength(series, n).value().toString();
                 break;   
             default :
                 for (int n = 0; n < chs; n++)
@@ -242,10 +314,359 @@ public class Tools {
     }
     
     
+    public int getNThreads() {
+        return(nThreads);
+    }
+    
+    
+    /**
+     * Parameters setters, for runs without dialog
+     */
+    public void setOmniposeEnvDir(String path) {
+        omniposeEnvDirPath = path;
+    }
+    
+    
+    /**
+     * Environment type: conda, venv or stub (CellposeStubWorker, for tests without Omnipose)
+     */
+    public void setOmniposeEnvType(String type) {
+        omniposeEnvType = type;
+    }
+    
+    
+    /**
+     * Time given to the Omnipose worker to segment an image, in s per megapixel, before it is restarted
+     */
+    public void setOmniposeTimeout(int seconds) {
+        omniposeTimeout = seconds;
+    }
+    
+    
+    public void setOmniposeModelsPath(String path) {
+        omniposeModelsPath = path.endsWith(File.separator) ? path : path + File.separator;
+    }
+    
+    
+    public void setOmniposeModel(String model) {
+        omniposeModel = model;
+    }
+    
+    
+    public void setOmniposeMode(String mode) {
+        if (!Arrays.asList(omniposeModes).contains(mode))
+            throw new IllegalArgumentException("Unknown Omnipose mode " + mode);
+        omniposeMode = mode;
+    }
+    
+    
+    public void setUseGpu(boolean gpu) {
+        useGpu = gpu;
+    }
+    
+    
+    public void setBactSurfaceRange(double min, double max) {
+        minBactSurface = min;
+        maxBactSurface = max;
+    }
+    
+    
+    public void setBactErosion(float erosion) {
+        bactErosion = erosion;
+    }
+    
+    
+    /**
+     * XY pixel size in µm
+     */
+    public void setPixelSize(double size) {
+        cal.pixelWidth = cal.pixelHeight = size;
+        cal.pixelDepth = 1;
+    }
+    
+    
+    /**
+     * Read calibration in each series, else use the pixel size for all
+     */
+    public void setSeriesCalib(boolean series) {
+        seriesCalib = series;
+    }
+    
+    
+    /**
+     * Segment images larger than size pixels in tiles overlapping by overlap pixels (see TileGrid), none if size is 0
+     */
+    public void setTiles(int size, int overlap) {
+        if (size > 0 && (overlap < 0 || overlap >= size))
+            throw new IllegalArgumentException("Tile overlap must be between 0 and tile size");
+        tileSize = Math.max(0, size);
+        tileOverlap = overlap;
+    }
+    
+    
+    /**
+     * True if image is segmented in tiles
+     */
+    public boolean isTiled(ImagePlus img) {
+        return(tileSize > 0 && (img.getWidth() > tileSize || img.getHeight() > tileSize));
+    }
+    
+    
+    public void setNThreads(int n) {
+        nThreads = Math.max(1, n);
+    }
+    
+    
+    public void setProcessingMode(String mode) {
+        if (!Arrays.asList(processingModes).contains(mode))
+            throw new IllegalArgumentException("Unknown processing mode " + mode);
+        processingMode = mode;
+    }
+    
+    
+    public void setStreamPlanes(boolean stream) {
+        streamPlanes = stream;
+    }
+    
+    
+    public void setResume(boolean resume) {
+        resumeRun = resume;
+    }
+    
+    
+    public void setMaskCache(boolean cache) {
+        useMaskCache = cache;
+    }
+    
+    
+    public void setBinaryResults(boolean binary) {
+        resultFormat = resultFormats[binary ? 1 : 0];
+    }
+    
+    
+    /**
+     * True if results are also saved as binary columns
+     */
+    public boolean isBinaryResults() {
+        return(resultFormat.equals(resultFormats[1]));
+    }
+    
+    
+    /**
+     * Results writer thread (see AsyncResultWriter): images queued before measurement threads wait,
+     * and rows or milliseconds pending before results files are flushed
+     */
+    public void setResultsBuffering(int queue, int flushRows, long flushMillis) {
+        if (queue < 1 || flushRows < 1 || flushMillis < 1)
+            throw new IllegalArgumentException("Results queue and flush thresholds must be positive");
+        resultsQueue = queue;
+        resultsFlushRows = flushRows;
+        resultsFlushMillis = flushMillis;
+    }
+    
+    
+    public int getResultsQueue() {
+        return(resultsQueue);
+    }
+    
+    
+    public int getResultsFlushRows() {
+        return(resultsFlushRows);
+    }
+    
+    
+    public long getResultsFlushMillis() {
+        return(resultsFlushMillis);
+    }
+    
+    
+    /**
+     * Save overlays of one image out of n (the first one, then every nth), none if n is 0
+     */
+    public void setOverlaysEvery(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("Invalid overlays interval " + n);
+        overlaysEvery = n;
+    }
+    
+    
+    /**
+     * True if overlays of image number index (from 0) are saved
+     */
+    public boolean hasOverlays(int index) {
+        return(overlaysEvery > 0 && index % overlaysEvery == 0);
+    }
+    
+    
+    public void setOverlayFormat(String format) {
+        if (!Arrays.asList(overlayFormats).contains(format))
+            throw new IllegalArgumentException("Unknown overlay format " + format);
+        overlayFormat = format;
+    }
+    
+    
+    /**
+     * True if only label masks of bacteria and edges are saved, instead of composite images
+     */
+    public boolean isMaskOverlays() {
+        return(overlayFormat.equals(overlayFormats[1]));
+    }
+    
+    
+    public void setOverlayCompression(String compression) {
+        if (!Arrays.asList(overlayCompressions).contains(compression))
+            throw new IllegalArgumentException("Unknown overlay compression " + compression);
+        overlayCompression = compression;
+    }
+    
+    
+    /**
+     * True if loading, segmentation and measurement run as separate stages
+     */
+    public boolean isPipelineMode() {
+        return(processingMode.equals(processingModes[1]));
+    }
+    
+    
+    /**
+     * True if Z-stacks are projected plane by plane while decoded
+     */
+    public boolean isStreamingMode() {
+        return(streamPlanes);
+    }
+    
+    
+    public int getMaxBufferedPlanes() {
+        return(maxBufferedPlanes);
+    }
+    
+    
+    /**
+     * True if images analyzed by a previous run with the same parameters are skipped
+     */
+    public boolean isResumeMode() {
+        return(resumeRun);
+    }
+    
+    
+    /**
+     * All parameters that change results, as a single string
+     */
+    public String getParamsKey(int[] chIndexes) {
+        return("channels=" + chIndexes[0] + "," + chIndexes[1] + ";" + omniposeSettings().getCacheKey() + ";minSurface=" + minBactSurface +
+                ";maxSurface=" + maxBactSurface + ";erosion=" + bactErosion + ";pixelWidth=" + cal.pixelWidth + ";seriesCalib=" + seriesCalib +
+                (tileSize > 0 ? ";tileSize=" + tileSize + ";tileOverlap=" + tileOverlap : ""));
+    }
+    
+    
+    /**
+     * True if Omnipose calls are serialized through the persistent worker
+     */
+    public boolean usesOmniposeWorker() {
+        return(omniposeMode.equals(omniposeModes[0]));
+    }
+    
+    
+    /**
+     * Open only the given channels of frame (from 0) of the current series of the reader
+     * Planes are decoded once, Z by Z, and each one is dispatched to its channel stack
+     * Channels are numbered as in getSizeC: planes of RGB (or interleaved) files hold getRGBChannelCount channels,
+     * channel ch being processor ch % rgb of plane ch / rgb
+     * @return one Z-stack per requested channel, in the same order as chIndexes
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImagePlus[] openChannels(ImageProcessorReader reader, int[] chIndexes, int frame, String imgName) throws FormatException, IOException {
+        Calibration seriesCal = seriesCalib(reader);
+        int width = reader.getSizeX();
+        int height = reader.getSizeY();
+        ImageStack[] stacks = new ImageStack[chIndexes.length];
+        for (int c = 0; c < chIndexes.length; c++)
+            stacks[c] = new ImageStack(width, height);
+        
+        int rgb = reader.getRGBChannelCount();
+        long planeBytes = (long)width * height * rgb * FormatTools.getBytesPerPixel(reader.getPixelType());
+        long bytesRead = 0;
+        for (int z = 0; z < reader.getSizeZ(); z++) {
+            // Channels of an RGB plane are decoded once
+            int lastIndex = -1;
+            ImageProcessor[] planes = null;
+            for (int c = 0; c < chIndexes.length; c++) {
+                int index = reader.getIndex(z, chIndexes[c] / rgb, frame);
+                if (index != lastIndex) {
+                    planes = reader.openProcessors(index);
+                    lastIndex = index;
+                    bytesRead += planeBytes;
+                }
+                stacks[c].addSlice("Z_" + (z+1), planes[chIndexes[c] % rgb]);
+            }
+        }
+        
+        ImagePlus[] imgs = new ImagePlus[chIndexes.length];
+        for (int c = 0; c < chIndexes.length; c++) {
+            imgs[c] = new ImagePlus(imgName + "-C" + chIndexes[c], stacks[c]);
+            imgs[c].setCalibration(seriesCal);
+        }
+        ImageMetrics.addBytesRead(bytesRead);
+        System.out.println(chIndexes.length + " channels read (" + (bytesRead >> 20) + " MB)");
+        return(imgs);
+    }
+    
+    
+    /**
+     * Open the given channels of frame (from 0) plane by plane and project their focused slices on the fly, never holding whole Z-stacks
+     * Only the planes that may be selected are buffered, selected planes left out of the buffer are read again
+     * @param methods ZProjector method of each channel
+     * @return one projection per requested channel, in the same order as chIndexes
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImagePlus[] openProjections(ImageProcessorReader reader, int[] chIndexes, int frame, int[] methods, String imgName) throws FormatException, IOException {
+        Calibration seriesCal = seriesCalib(reader);
+        int nSlices = reader.getSizeZ();
+        StreamingProjector[] projectors = new StreamingProjector[chIndexes.length];
+        for (int c = 0; c < chIndexes.length; c++) {
+            Find_focused_slices focus = new Find_focused_slices();
+            focus.setParams(80, 0, false, false);
+            projectors[c] = new StreamingProjector(focus, methods[c], nSlices, maxBufferedPlanes);
+        }
+        
+        int rgb = reader.getRGBChannelCount();
+        long planeBytes = (long)reader.getSizeX() * reader.getSizeY() * rgb * FormatTools.getBytesPerPixel(reader.getPixelType());
+        long bytesRead = 0;
+        for (int z = 0; z < nSlices; z++) {
+            // Channels of an RGB plane are decoded once
+            int lastIndex = -1;
+            ImageProcessor[] planes = null;
+            for (int c = 0; c < chIndexes.length; c++) {
+                int index = reader.getIndex(z, chIndexes[c] / rgb, frame);
+                if (index != lastIndex) {
+                    planes = reader.openProcessors(index);
+                    lastIndex = index;
+                    bytesRead += planeBytes;
+                }
+                projectors[c].add(z+1, planes[chIndexes[c] % rgb]);
+            }
+        }
+        
+        ImagePlus[] imgs = new ImagePlus[chIndexes.length];
+        for (int c = 0; c < chIndexes.length; c++) {
+            int ch = chIndexes[c];
+            imgs[c] = projectors[c].getProjection(imgName + "-C" + ch, seriesCal, slice -> reader.openProcessors(reader.getIndex(slice-1, ch / rgb, frame))[ch % rgb]);
+            bytesRead += projectors[c].getRereadCount() * planeBytes;
+        }
+        ImageMetrics.addBytesRead(bytesRead);
+        System.out.println(chIndexes.length + " channels read and projected (" + (bytesRead >> 20) + " MB)");
+        return(imgs);
+    }
+    
+    
     /**
      * Generate dialog box
      */
     public String[] dialog(String[] channels) {
+        if (icon == null)
+            icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
         GenericDialogPlus gd = new GenericDialogPlus("Parameters");
         gd.setInsets​(0, 80, 0);
         gd.addImage(icon);
@@ -260,12 +681,27 @@ public class Tools {
         gd.addMessage("Bacteria detection", Font.getFont("Monospace"), Color.blue);
         gd.addDirectoryField("Omnipose environment directory: ", omniposeEnvDirPath);
         gd.addDirectoryField("Omnipose models path: ", omniposeModelsPath);
+        gd.addChoice("Omnipose mode: ", omniposeModes, omniposeMode);
+        gd.addCheckbox("Reuse cached Omnipose masks", useMaskCache);
+        gd.addNumericField("Tile size for large images (pixels, 0 = none): ", tileSize, 0);
+        gd.addNumericField("Tile overlap (pixels): ", tileOverlap, 0);
         gd.addNumericField("Min bacterium area (µm2): ", minBactSurface);
         gd.addNumericField("Max bacterium area (µm2): ", maxBactSurface);
         gd.addNumericField("Bacterium erosion (µm): ", bactErosion);
         
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY calibration (µm):", cal.pixelWidth);
+        gd.addCheckbox("Read calibration of each series", seriesCalib);
+        
+        gd.addMessage("Processing", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Number of threads: ", nThreads, 0);
+        gd.addChoice("Processing mode: ", processingModes, processingMode);
+        gd.addCheckbox("Stream Z planes (low memory)", streamPlanes);
+        gd.addCheckbox("Skip images already analyzed", resumeRun);
+        gd.addChoice("Results format: ", resultFormats, resultFormat);
+        gd.addNumericField("Save overlays every N images (0 = none): ", overlaysEvery, 0);
+        gd.addChoice("Overlays: ", overlayFormats, overlayFormat);
+        gd.addChoice("Overlays compression: ", overlayCompressions, overlayCompression);
         gd.showDialog();
         
         String[] ch = new String[channelsName.length];
@@ -274,13 +710,24 @@ public class Tools {
 
         omniposeEnvDirPath = gd.getNextString();
         omniposeModelsPath = gd.getNextString();
+        omniposeMode = gd.getNextChoice();
+        useMaskCache = gd.getNextBoolean();
+        tileSize = Math.max(0, (int) gd.getNextNumber());
+        tileOverlap = Math.max(0, Math.min(tileSize - 1, (int) gd.getNextNumber()));
         minBactSurface = (float) gd.getNextNumber();
         maxBactSurface = (float) gd.getNextNumber();
         bactErosion = (float) gd.getNextNumber();
         
-        cal.pixelWidth = cal.pixelHeight = gd.getNextNumber();
-        cal.pixelDepth = 1;
-        pixelSurf = cal.pixelWidth*cal.pixelHeight;
+        setPixelSize(gd.getNextNumber());
+        seriesCalib = gd.getNextBoolean();
+        nThreads = Math.max(1, (int) gd.getNextNumber());
+        processingMode = gd.getNextChoice();
+        streamPlanes = gd.getNextBoolean();
+        resumeRun = gd.getNextBoolean();
+        resultFormat = gd.getNextChoice();
+        overlaysEvery = Math.max(0, (int) gd.getNextNumber());
+        overlayFormat = gd.getNextChoice();
+        overlayCompression = gd.getNextChoice();
         
         if (gd.wasCanceled())
            ch = null;
@@ -292,29 +739,21 @@ public class Tools {
     
     /**
      * Do Z projection after finding best focussed slices
+     * Focused slices are projected straight from the source stack, without copying them into a new stack
      */
     public ImagePlus doZProjection(ImagePlus img, int param) {
+        Find_focused_slices focus = new Find_focused_slices();
         focus.setParams(80, 0, false, false);
-        ImagePlus imgFocus = focus.run(img);
-        ZProjector zproject = new ZProjector();
-        zproject.setMethod(param);
-        zproject.setStartSlice(1);
-        zproject.setStopSlice(img.getNSlices());
-        zproject.setImage(imgFocus);
-        zproject.doProjection();
-        flush_close(imgFocus);
-       return(zproject.getProjection());
+        return(FocusedProjector.project(img, param, focus));
     }
     
     
     /**
-    * Detect bacteria with Omnipose
-    */
-    public Objects3DIntPopulation omniposeDetection(ImagePlus imgBact){
-        ImagePlus imgIn = new Duplicator().run(imgBact);
-        
-        // Set Omnipose settings
+     * Omnipose settings
+     */
+    private CellposeTaskSettings omniposeSettings() {
         CellposeTaskSettings settings = new CellposeTaskSettings(omniposeModelsPath+omniposeModel, 1, omniposeDiameter, omniposeEnvDirPath);
+        settings.setEnvType(omniposeEnvType);
         settings.setVersion("0.7");
         settings.setCluster(true);
         settings.setOmni(true);
@@ -322,100 +761,515 @@ public class Tools {
         settings.setCellProbTh(omniposeMaskThreshold);
         settings.setFlowTh(omniposeFlowThreshold);
         settings.useGpu(useGpu);
-        
-        // Run Omnipose
-        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgIn);
-        //PrintStream console = System.out;
-        //System.setOut(new NullPrintStream());
-        ImagePlus imgOut = cellpose.run();
-        //System.setOut(console);
-        imgOut.setCalibration(cal);
-        
-        // Filter bacteria population
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgOut));
-        pop = new Objects3DIntPopulationComputation(pop).getExcludeBorders(ImageHandler.wrap(imgOut), false);
-        pop = new Objects3DIntPopulationComputation(pop).getFilterSize(minBactSurface/pixelSurf, maxBactSurface/pixelSurf);
-        pop.resetLabels();
+        return(settings);
+    }
+    
+    
+    /**
+     * Segment image with the persistent Omnipose worker, started on first use
+     * Return null if the worker failed on this image, so that Omnipose is called the usual way for it
+     * Worker mode is dropped for the rest of the run only if the worker can't be started
+     */
+    private synchronized ImagePlus omniposeWorkerDetection(ImagePlus img) {
+        if (omniposeWorker == null) {
+            try {
+                omniposeWorker = new CellposeWorker(omniposeSettings()).setSegmentTimeout(omniposeTimeout * 1000L);
+                omniposeWorker.start();
+            } catch (IOException | UnsupportedOperationException ex) {
+                print("Omnipose worker could not start (" + ex.getMessage() + "), switching to one call per image");
+                closeOmniposeWorker();
+                omniposeMode = omniposeModes[1];
+                return(null);
+            }
+        }
+        try {
+            return(omniposeWorker.segment(img));
+        } catch (IOException ex) {
+            print("Omnipose worker failed on " + img.getTitle() + " (" + ex.getMessage() + "), calling Omnipose for this image");
+            // Worker out of restarts: a new one is started for the next image
+            if (!omniposeWorker.isRunning())
+                closeOmniposeWorker();
+            return(null);
+        }
+    }
+    
+    
+    /**
+     * Stop the persistent Omnipose worker at the end of the batch
+     */
+    public synchronized void closeOmniposeWorker() {
+        if (omniposeWorker != null) {
+            omniposeWorker.close();
+            omniposeWorker = null;
+        }
+    }
+    
+    
+    /**
+     * Cache of Omnipose masks, null if not used
+     */
+    private synchronized SegmentationCache maskCache() {
+        if (useMaskCache && maskCache == null)
+            maskCache = new SegmentationCache(maskCacheDir, maskCacheMaxBytes);
+        return(useMaskCache ? maskCache : null);
+    }
+    
+    
+    /**
+     * Print mask cache hits and misses
+     */
+    public void printCacheStats() {
+        if (maskCache != null)
+            maskCache.printStats();
+    }
+    
+    
+    /**
+    * Detect bacteria with Omnipose, tile by tile in images larger than the tile size
+    * @param executor threads segmenting the tiles of an image, or null to segment them one after the other
+    */
+    public LabelObjects omniposeDetection(ImagePlus imgBact, ExecutorService executor) throws IOException {
+        if (isTiled(imgBact))
+            return(tiledDetection(imgBact, executor));
+        ImagePlus imgOut = omniposeMask(imgBact);
+        LabelObjects bacteria = filterBacteria(imgOut, imgBact.getCalibration());
         
         // Close images
-        flush_close(imgIn);
         flush_close(imgOut);
         
-        return(pop);
+        return(bacteria);
     }
     
-
+    
+    /**
+     * Segment tiles of the image, in parallel if executor is not null, and stitch the bacteria each tile owns (see TileGrid)
+     * With the persistent worker, tiles are still segmented one after the other by the single worker process,
+     * only cutting tiles and pasting their masks overlap
+     * Tile masks are pasted in tile order as they come, so that the stitched mask does not depend on the threads
+     */
+    private LabelObjects tiledDetection(ImagePlus imgBact, ExecutorService executor) throws IOException {
+        TileGrid grid = new TileGrid(imgBact.getWidth(), imgBact.getHeight(), tileSize, tileOverlap);
+        System.out.println(imgBact.getTitle() + ": segmenting " + grid.size() + " tiles of " + tileSize + " pixels");
+        ImageMetrics metrics = ImageMetrics.current();
+        List<Future<ImagePlus>> masks = new ArrayList<>();
+        try {
+            for (int i = 0; i < grid.size(); i++) {
+                int index = i;
+                if (executor == null) {
+                    masks.add(CompletableFuture.completedFuture(tileMask(imgBact, grid, index)));
+                    continue;
+                }
+                masks.add(executor.submit(() -> {
+                    // Omnipose time goes to the image of the tile
+                    ImageMetrics.Timer t = metrics != null ? metrics.time("tiles") : null;
+                    try {
+                        return(tileMask(imgBact, grid, index));
+                    } finally {
+                        if (t != null)
+                            t.close();
+                    }
+                }));
+            }
+            int[] stitched = new int[grid.width*grid.height];
+            int nextLabel = 1;
+            for (int i = 0; i < grid.size(); i++) {
+                ImagePlus mask = masks.get(i).get();
+                nextLabel = grid.paste(mask.getProcessor(), i, stitched, nextLabel);
+                flush_close(mask);
+            }
+            return(filterBacteria(stitched, grid.width, grid.height, imgBact.getCalibration()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Tiles segmentation interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Tile segmentation failed in " + imgBact.getTitle(), ex.getCause());
+        } finally {
+            for (Future<ImagePlus> f : masks)
+                f.cancel(true);
+        }
+    }
+    
+    
+    /**
+     * Tile i of an image, with its calibration
+     * The source processor is locked while its ROI is set, as tiles are cut by several threads
+     */
+    private ImagePlus tileImage(ImagePlus img, TileGrid grid, int i) {
+        Rectangle tile = grid.tile(i);
+        ImageProcessor ip = img.getProcessor();
+        ImageProcessor crop;
+        synchronized (ip) {
+            ip.setRoi(tile);
+            crop = ip.crop();
+            ip.resetRoi();
+        }
+        ImagePlus imgTile = new ImagePlus(img.getTitle() + "_tile" + (i+1), crop);
+        imgTile.setCalibration(img.getCalibration());
+        return(imgTile);
+    }
+    
+    
+    /**
+     * Omnipose mask of tile i of an image
+     */
+    private ImagePlus tileMask(ImagePlus img, TileGrid grid, int i) {
+        ImagePlus imgTile = tileImage(img, grid, i);
+        ImagePlus mask = omniposeMask(imgTile);
+        flush_close(imgTile);
+        return(mask);
+    }
+    
+    
+    /**
+    * Omnipose label mask of an image
+    * Masks already computed for the same projection and Omnipose settings are read from the cache
+    */
+    private ImagePlus omniposeMask(ImagePlus imgBact) {
+        SegmentationCache cache = maskCache();
+        String key = cache != null ? SegmentationCache.key(imgBact, omniposeSettings().getCacheKey()) : null;
+        ImagePlus imgOut = cache != null ? cache.get(key) : null;
+        if (imgOut != null)
+            return(imgOut);
+        
+        // Run Omnipose
+        // The worker reads pixels straight from the projection, no copy needed
+        long start = System.nanoTime();
+        if (omniposeMode.equals(omniposeModes[0]))
+            imgOut = omniposeWorkerDetection(imgBact);
+        if (imgOut == null) {
+            ImagePlus imgIn = new Duplicator().run(imgBact);
+            CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(omniposeSettings(), imgIn);
+            //PrintStream console = System.out;
+            //System.setOut(new NullPrintStream());
+            imgOut = cellpose.run();
+            //System.setOut(console);
+            flush_close(imgIn);
+        }
+        ImageMetrics.addTime("omnipose", System.nanoTime() - start);
+        if (cache != null && imgOut != null)
+            cache.put(key, imgOut);
+        return(imgOut);
+    }
+    
+    
+    /**
+     * Remove bacteria touching image borders and outside size range, kept bacteria are relabelled from 1 in the mask
+     */
+    private LabelObjects filterBacteria(ImagePlus imgMask, Calibration imgCal) {
+        ImageProcessor mask = imgMask.getBitDepth() == 16 ? imgMask.getProcessor() : imgMask.getProcessor().convertToShort(false);
+        double pixelSurf = imgCal.pixelWidth*imgCal.pixelHeight;
+        return(LabelObjects.filterMask((short[]) mask.getPixels(), mask.getWidth(), mask.getHeight(), minBactSurface/pixelSurf, maxBactSurface/pixelSurf));
+    }
+    
+    
+    /**
+     * Same as filterBacteria for a mask stitched from tiles, labels may go above 65535
+     */
+    private LabelObjects filterBacteria(int[] stitched, int width, int height, Calibration imgCal) {
+        double pixelSurf = imgCal.pixelWidth*imgCal.pixelHeight;
+        return(LabelObjects.filterMask(stitched, width, height, minBactSurface/pixelSurf, maxBactSurface/pixelSurf));
+    }
+    
+    
+    /**
+     * True if Omnipose is run once over all images
+     */
+    public boolean isBatchMode() {
+        return(omniposeMode.equals(omniposeModes[2]));
+    }
+    
+    
+    /**
+     * Save bacteria and DNA projections for the single Omnipose call
+     * Images with a cached mask are kept out of the Omnipose call, large images are added tile by tile
+     * A new folder is used for each run, so that runs at the same time don't share their images
+     */
+    public synchronized void batchAdd(String imgName, ImagePlus imgBact, ImagePlus imgDna) throws IOException {
+        if (omniposeBatch == null) {
+            File batchDir = Files.createTempDirectory(new File(IJ.getDirectory("Temp")).toPath(), "omniposeBatch").toFile();
+            omniposeBatch = new CellposeSegmentBatch(omniposeSettings(), new File(batchDir, "bacteria"));
+            dnaBatchDir = new File(batchDir, "dna");
+            dnaBatchDir.mkdirs();
+        }
+        if (isTiled(imgBact)) {
+            TileGrid grid = new TileGrid(imgBact.getWidth(), imgBact.getHeight(), tileSize, tileOverlap);
+            for (int i = 0; i < grid.size(); i++) {
+                ImagePlus imgTile = tileImage(imgBact, grid, i);
+                batchAddBacteria(imgName + "_tile" + (i+1), imgTile);
+                flush_close(imgTile);
+            }
+            new FileSaver(imgBact).saveAsTiff(new File(dnaBatchDir, imgName + "_bact.tif").toString());
+        } else if (!batchAddBacteria(imgName, imgBact)) {
+            new FileSaver(imgBact).saveAsTiff(new File(dnaBatchDir, imgName + "_bact.tif").toString());
+        }
+        new FileSaver(imgDna).saveAsTiff(new File(dnaBatchDir, imgName + ".tif").toString());
+    }
+    
+    
     /**
-     * Compute bacteria parameters and save them in file
+     * Add a bacteria image to the Omnipose call, unless its mask is cached
+     * @return true if added
+     */
+    private boolean batchAddBacteria(String name, ImagePlus imgBact) {
+        SegmentationCache cache = maskCache();
+        ImagePlus mask = cache != null ? cache.get(SegmentationCache.key(imgBact, omniposeSettings().getCacheKey())) : null;
+        if (mask != null) {
+            batchCachedMasks.put(name, mask);
+            return(false);
+        }
+        omniposeBatch.add(name, imgBact);
+        return(true);
+    }
+    
+    
+    /**
+     * Detect bacteria in all saved images with a single Omnipose call
      * @throws java.io.IOException
      */
-    public Objects3DIntPopulation saveResults(Objects3DIntPopulation bactPop, ImagePlus img, String imgName, String outDir, BufferedWriter resFile) throws IOException {
-        Objects3DIntPopulation bactBorderPop = new Objects3DIntPopulation();
-        for (Object3DInt bact : bactPop.getObjects3DInt()) {
-            double bactSurf = new MeasureVolume(bact).getValueMeasurement(MeasureVolume.VOLUME_UNIT);
-            VoxelInt feret1Unit = new MeasureFeret(bact).getFeret1Unit();
-            VoxelInt feret2Unit = new MeasureFeret(bact).getFeret2Unit();
-            double bactLength = feret1Unit.distance(feret2Unit)*cal.pixelWidth;
-            
-            float erosion = (float)(bactErosion/cal.pixelWidth);
-            Object3DInt bactInside = getMorphologicalObject2D(bact, BinaryMorpho.MORPHO_ERODE, erosion, erosion);
-            Object3DInt bactBorder = new Object3DComputation(bact).getObjectSubtracted(bactInside);
-            
-            double volbactInside = new MeasureVolume(bactInside).getValueMeasurement(MeasureVolume.VOLUME_UNIT);
-            if (volbactInside != 0) {
-                bactBorderPop.addObject(bactBorder);
-                double bactInsideInt = new MeasureIntensity(bactInside, ImageHandler.wrap(img)).getValueMeasurement(MeasureIntensity.INTENSITY_AVG);
-                double bactBorderInt = new MeasureIntensity(bactBorder, ImageHandler.wrap(img)).getValueMeasurement(MeasureIntensity.INTENSITY_AVG);
-                resFile.write(imgName+"\t"+bact.getLabel()+"\t"+bactSurf+"\t"+bactLength+"\t"+bactInsideInt+"\t"+bactBorderInt+"\n");
-            } else {
-                resFile.write(imgName+"\t"+bact.getLabel()+"\t"+bactSurf+"\t"+bactLength+"\n");
+    public void batchRun() throws IOException {
+        if (omniposeBatch == null || omniposeBatch.getNames().isEmpty())
+            return;
+        try {
+            omniposeBatch.run();
+        } catch (Exception ex) {
+            throw new IOException("Omnipose failed on batch directory", ex);
+        }
+    }
+    
+    
+    /**
+     * Reopen saved bacteria and DNA projections of an image
+     */
+    public ImagePlus[] batchImages(String imgName) {
+        File dnaFile = new File(dnaBatchDir, imgName + ".tif");
+        File bactFile = new File(dnaBatchDir, imgName + "_bact.tif");
+        ImagePlus imgBact = bactFile.exists() ? IJ.openImage(bactFile.toString()) : omniposeBatch.getImage(imgName);
+        ImagePlus[] imgs = {imgBact, IJ.openImage(dnaFile.toString())};
+        dnaFile.delete();
+        bactFile.delete();
+        return(imgs);
+    }
+    
+    
+    /**
+     * Get bacteria found by the single Omnipose call in an image, stitched from its tiles if tiled
+     */
+    public LabelObjects batchDetection(String imgName, ImagePlus imgBact) throws IOException {
+        if (isTiled(imgBact)) {
+            TileGrid grid = new TileGrid(imgBact.getWidth(), imgBact.getHeight(), tileSize, tileOverlap);
+            int[] stitched = new int[grid.width*grid.height];
+            int nextLabel = 1;
+            for (int i = 0; i < grid.size(); i++) {
+                ImagePlus imgTile = tileImage(imgBact, grid, i);
+                ImagePlus mask = batchMask(imgName + "_tile" + (i+1), imgTile);
+                nextLabel = grid.paste(mask.getProcessor(), i, stitched, nextLabel);
+                flush_close(mask);
+                flush_close(imgTile);
             }
-            resFile.flush();
+            return(filterBacteria(stitched, grid.width, grid.height, imgBact.getCalibration()));
         }
-        return bactBorderPop;
+        ImagePlus imgOut = batchMask(imgName, imgBact);
+        LabelObjects bacteria = filterBacteria(imgOut, imgBact.getCalibration());
+        flush_close(imgOut);
+        return(bacteria);
     }
     
     
-    private Object3DInt getMorphologicalObject2D(Object3DInt obj, int op, float radX, float radY) {
-        ImageHandler labelImage = new Object3DIntLabelImage(obj).getCroppedLabelImage(1, 1, 0, 1, false);
-
-        ImageHandler segImage2;
-        int filter = 0;
-        if (op == BinaryMorpho.MORPHO_DILATE) {
-            filter = FastFilters3D.MAX;
-        } else if (op == BinaryMorpho.MORPHO_ERODE) {
-            filter = FastFilters3D.MIN;
-        } else if (op == BinaryMorpho.MORPHO_CLOSE) {
-            filter = FastFilters3D.CLOSEGRAY;
-        } else if (op == BinaryMorpho.MORPHO_OPEN) {
-            filter = FastFilters3D.OPENGRAY;
+    /**
+     * Mask of an image of the single Omnipose call, or its cached mask
+     */
+    private ImagePlus batchMask(String name, ImagePlus imgBact) {
+        ImagePlus mask;
+        synchronized (this) {
+            mask = batchCachedMasks.remove(name);
         }
-        segImage2 = FastFilters3D.filterImage(labelImage, filter, radX, radY, 0, 0, true);
-        segImage2.setOffset(labelImage);
-        segImage2.setCalibration(cal);
+        if (mask == null) {
+            mask = omniposeBatch.getMask(name);
+            SegmentationCache cache = maskCache();
+            if (cache != null)
+                cache.put(SegmentationCache.key(imgBact, omniposeSettings().getCacheKey()), mask);
+        }
+        return(mask);
+    }
+    
+    
+    /**
+     * Delete files saved for the single Omnipose call
+     */
+    public void batchClose() {
+        if (omniposeBatch != null) {
+            omniposeBatch.close();
+            File[] left = dnaBatchDir.listFiles();
+            if (left != null)
+                for (File f : left)
+                    f.delete();
+            dnaBatchDir.delete();
+            dnaBatchDir.getParentFile().delete();
+            omniposeBatch = null;
+        }
+    }
+    
 
-        Object3DInt objMorpho = new Object3DInt(segImage2);
-        objMorpho.setLabel(obj.getLabel());
-        return objMorpho;
+    /**
+     * Compute bacteria parameters and add them to rows
+     * All bacteria are measured in a single walk over their pixels (see BacteriaMeasure)
+     * @param frame time frame of the image, from 1, or 0 without time-lapse
+     */
+    public LabelObjects saveResults(LabelObjects bacteria, ImagePlus img, String imgName, int frame, List<ResultRow> rows) {
+        Calibration imgCal = img.getCalibration();
+        BacteriaMeasure measure = bacteria.measure(img.getProcessor(), (float)(bactErosion/imgCal.pixelWidth));
+        
+        double pixelArea = imgCal.pixelWidth*imgCal.pixelHeight*imgCal.pixelDepth;
+        for (int label = 1; label <= bacteria.size(); label++) {
+            double bactSurf = measure.area[label]*pixelArea;
+            double bactLength = measure.feret[label]*imgCal.pixelWidth;
+            double bactInsideInt = Double.NaN, bactBorderInt = Double.NaN;
+            if (measure.insideArea[label] != 0) {
+                bactInsideInt = measure.insideSum[label]/measure.insideArea[label];
+                bactBorderInt = measure.borderSum[label]/(measure.area[label] - measure.insideArea[label]);
+            }
+            rows.add(new ResultRow(imgName, frame, label, bactSurf, bactLength, bactInsideInt, bactBorderInt));
+        }
+        
+        // Edges of bacteria, with the labels of their bacteria
+        LabelObjects borders = LabelObjects.fromLabels(measure.borderLabels, bacteria.width, bacteria.height);
+        return borders;
     }
 
     
     /**
      * Draw results in images
      */
-    public void drawResults(ImagePlus img, Objects3DIntPopulation bactPop, String fileName, String imgName, String outDir) {
-        ImageHandler imgObjects = ImageHandler.wrap(img).createSameDimensions();
-        bactPop.drawInImage(imgObjects);
-        IJ.run(imgObjects.getImagePlus(), "glasbey on dark", "");
+    public void drawResults(ImagePlus img, LabelObjects bacteria, String fileName, String imgName, String outDir) throws IOException {
+        drawResults(img, bacteria, fileName, imgName, outDir, new short[img.getWidth()*img.getHeight()]);
+    }
+    
+    
+    /**
+     * Draw results in images, bacteria being drawn in the labels buffer (width x height), reused from one image to the next
+     * Saved as a two-channel composite: bacteria with the labels LUT over the image
+     */
+    public void drawResults(ImagePlus img, LabelObjects bacteria, String fileName, String imgName, String outDir, short[] labels) throws IOException {
+        ShortProcessor labelsIp = drawLabels(bacteria, labels);
+        ImageProcessor ip = img.getBitDepth() == 16 ? img.getProcessor() : img.getProcessor().convertToShort(false);
         
-        ImagePlus[] imgColors = {imgObjects.getImagePlus(), null, null, img};
-        ImagePlus imgOut = new RGBStackMerge().mergeHyperstacks(imgColors, true);
-        imgOut.setCalibration(cal);
-        FileSaver ImgObjectsFile = new FileSaver(imgOut);
-        ImgObjectsFile.saveAsTiff(outDir+imgName+fileName);
+        File file = new File(outDir+imgName+fileName);
+        if (overlayCompression.equals(overlayCompressions[0]))
+            new FileSaver(labelsComposite(imgName+fileName, new ImageProcessor[] {labelsIp}, ip, img.getCalibration())).saveAsTiff(file.getPath());
+        else
+            saveCompressed(new ImageProcessor[] {labelsIp, ip}, imgName+fileName, file, img.getCalibration());
+        ImageMetrics.addBytesWritten(file.length());
+    }
+    
+    
+    /**
+     * Save bacteria and their edges as 16-bit label masks, in a single two-page file (<image>_masks.tif)
+     * A fraction of the size of the composites, these are shown as overlays by the masks viewer
+     */
+    public void saveMasks(LabelObjects bacteria, LabelObjects borders, Calibration imgCal, String imgName, String outDir,
+            short[] labels, short[] bordersLabels) throws IOException {
+        int width = bacteria.width;
+        int height = bacteria.height;
+        ImageProcessor[] masks = {drawLabels(bacteria, labels), drawLabels(borders, bordersLabels)};
+        File file = new File(outDir+imgName+"_masks.tif");
+        if (overlayCompression.equals(overlayCompressions[0])) {
+            ImageStack stack = new ImageStack(width, height);
+            stack.addSlice("bacteria", masks[0]);
+            stack.addSlice("edges", masks[1]);
+            ImagePlus imgMasks = new ImagePlus(imgName+"_masks", stack);
+            imgMasks.setCalibration(imgCal);
+            new FileSaver(imgMasks).saveAsTiff(file.getPath());
+        } else {
+            saveCompressed(masks, imgName+"_masks", file, imgCal);
+        }
+        ImageMetrics.addBytesWritten(file.length());
+    }
+    
+    
+    /**
+     * Draw objects in a labels buffer
+     */
+    private ShortProcessor drawLabels(LabelObjects objects, short[] labels) {
+        objects.draw(labels);
+        ShortProcessor labelsIp = new ShortProcessor(objects.width, objects.height, labels, null);
+        labelsIp.resetMinAndMax();
+        return(labelsIp);
+    }
+    
+    
+    /**
+     * Composite of label images shown with the labels LUT, over a grey image if not null
+     */
+    public CompositeImage labelsComposite(String title, ImageProcessor[] labels, ImageProcessor img, Calibration imgCal) {
+        ImageStack stack = new ImageStack(labels[0].getWidth(), labels[0].getHeight());
+        for (ImageProcessor ip : labels)
+            stack.addSlice("labels", ip);
+        if (img != null)
+            stack.addSlice("image", img);
+        ImagePlus imgOut = new ImagePlus(title, stack);
+        imgOut.setDimensions(stack.getSize(), 1, 1);
+        CompositeImage composite = new CompositeImage(imgOut, IJ.COMPOSITE);
+        for (int c = 0; c < labels.length; c++) {
+            labels[c].resetMinAndMax();
+            composite.setChannelLut(new LUT(labelsLut().getColorModel(), 0, labels[c].getMax()), c+1);
+        }
+        if (img != null)
+            composite.setChannelLut(new LUT(LUT.createLutFromColor(Color.white).getColorModel(), img.getMin(), img.getMax()), stack.getSize());
+        composite.setCalibration(imgCal);
+        return(composite);
+    }
+    
+    
+    /**
+     * Glasbey on dark LUT of Fiji, loaded once, or distinct colors if not found
+     */
+    private synchronized LUT labelsLut() {
+        if (labelsLut == null) {
+            String lutsDir = IJ.getDirectory("luts");
+            if (lutsDir != null && new File(lutsDir, "glasbey_on_dark.lut").exists())
+                labelsLut = LutLoader.openLut(new File(lutsDir, "glasbey_on_dark.lut").getPath());
+            if (labelsLut == null) {
+                byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+                for (int i = 1; i < 256; i++) {
+                    // Hues spread by the golden ratio, so that consecutive labels differ
+                    Color c = Color.getHSBColor((float) ((i * 0.618033988749895) % 1), 1f - 0.3f * (i % 3) / 2, 1f - 0.25f * (i % 2));
+                    r[i] = (byte) c.getRed();
+                    g[i] = (byte) c.getGreen();
+                    b[i] = (byte) c.getBlue();
+                }
+                labelsLut = new LUT(r, g, b);
+            }
+        }
+        return(labelsLut);
+    }
+    
+    
+    /**
+     * Save 16-bit channels as a compressed TIFF with Bio-Formats (LZW or deflate)
+     */
+    private void saveCompressed(ImageProcessor[] channels, String name, File file, Calibration imgCal) throws IOException {
+        int width = channels[0].getWidth();
+        int height = channels[0].getHeight();
+        IMetadata meta = MetadataTools.createOMEXMLMetadata();
+        MetadataTools.populateMetadata(meta, 0, name, true, "XYCZT", "uint16", width, height, 1, channels.length, 1, 1);
+        meta.setPixelsPhysicalSizeX(new Length(imgCal.pixelWidth, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeY(new Length(imgCal.pixelHeight, UNITS.MICROMETER), 0);
         
-        imgObjects.closeImagePlus();
-        flush_close(imgOut);
+        // The writer appends to an existing file
+        file.delete();
+        ByteBuffer plane = ByteBuffer.allocate(width*height*2).order(ByteOrder.LITTLE_ENDIAN);
+        try (TiffWriter writer = new TiffWriter()) {
+            writer.setMetadataRetrieve(meta);
+            writer.setCompression(overlayCompression.equals(overlayCompressions[1]) ? TiffWriter.COMPRESSION_LZW : TiffWriter.COMPRESSION_ZLIB);
+            writer.setId(file.getPath());
+            for (int c = 0; c < channels.length; c++) {
+                plane.clear();
+                plane.asShortBuffer().put((short[]) channels[c].getPixels());
+                writer.saveBytes(c, plane.array());
+            }
+        } catch (FormatException ex) {
+            throw new IOException("Can't save " + file, ex);
+        }
     }
     
 }
@@ -0,0 +1,47 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Results as a tab-separated table (results.xls), buffered and flushed once per image
+ * @author Orion-CIRB
+ */
+public class TsvResultSink implements ResultSink {
+
+    private final BufferedWriter writer;
+
+
+    /**
+     * @param frames true for time-lapse runs, with a Frame column
+     */
+    public TsvResultSink(File file, boolean frames) throws IOException {
+        writer = new BufferedWriter(new FileWriter(file, false), 1 << 16);
+        writer.write((frames ? ResultRow.FRAMES_HEADER : ResultRow.HEADER) + "\n");
+    }
+
+
+    @Override
+    public void write(List<ResultRow> rows) throws IOException {
+        for (ResultRow row : rows) {
+            writer.write(row.toTsv());
+            writer.write('\n');
+        }
+    }
+
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,64 @@
+import DNA_In_Border_Bacteria_Tools.Tools;
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Show label masks saved instead of overlay images (<image>_masks.tif in Results)
+ * Bacteria and their edges are shown with the labels LUT, over an open image of the same size if chosen
+ * 
+ * @author ORION-CIRB
+ */
+public class DNA_In_Border_Bacteria_Viewer implements PlugIn {
+    
+    Tools tools = new Tools();
+    
+    
+    public void run(String arg) {
+        OpenDialog od = new OpenDialog("Choose label masks (_masks.tif)...");
+        if (od.getPath() == null)
+            return;
+        ImagePlus masks = IJ.openImage(od.getPath());
+        if (masks == null || masks.getStackSize() != 2 || masks.getBitDepth() != 16) {
+            IJ.showMessage("Error", od.getFileName() + " is not a label masks file");
+            return;
+        }
+        
+        // Open images of the same size can be shown under the masks
+        List<String> titles = new ArrayList<>();
+        titles.add("None");
+        int[] ids = WindowManager.getIDList();
+        if (ids != null) {
+            for (int id : ids) {
+                ImagePlus imp = WindowManager.getImage(id);
+                if (imp != null && imp.getWidth() == masks.getWidth() && imp.getHeight() == masks.getHeight())
+                    titles.add(imp.getTitle());
+            }
+        }
+        ImageProcessor img = null;
+        if (titles.size() > 1) {
+            GenericDialog gd = new GenericDialog("Label masks");
+            gd.addChoice("Image under masks: ", titles.toArray(new String[0]), titles.get(0));
+            gd.showDialog();
+            if (gd.wasCanceled())
+                return;
+            String title = gd.getNextChoice();
+            if (!title.equals(titles.get(0))) {
+                img = WindowManager.getImage(title).getProcessor();
+                if (img.getBitDepth() != 16)
+                    img = img.convertToShort(false);
+            }
+        }
+        
+        ImageStack stack = masks.getStack();
+        CompositeImage overlay = tools.labelsComposite(masks.getShortTitle(), new ImageProcessor[] {stack.getProcessor(1), stack.getProcessor(2)}, img,
+                masks.getCalibration());
+        overlay.show();
+    }
+}
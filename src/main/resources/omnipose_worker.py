@@ -0,0 +1,102 @@
+"""
+Persistent Omnipose worker for DNA_In_Border_Bacteria
+
+The model is loaded once, then images are segmented on request until stdin is closed.
+Protocol (one ASCII command line, pixels as little-endian binary buffers):
+    PING                                           -> PONG
+    SEGMENT <width> <height> + float32 pixels      -> MASK <width> <height> + uint16 labels
+                                                      or ERROR <message>
+    SEGMENTMAP <width> <height> <file>             -> MASKMAP <width> <height> or ERROR <message>
+        same as SEGMENT, pixels are read from the start of the memory-mapped file
+        and labels are written back over them
+    QUIT
+READY is written on stdout once the model is loaded. Everything else goes to stderr.
+"""
+
+import argparse
+import sys
+
+import numpy as np
+
+
+def read_exact(stream, size):
+    buf = bytearray()
+    while len(buf) < size:
+        chunk = stream.read(size - len(buf))
+        if not chunk:
+            raise EOFError("stdin closed while reading image")
+        buf.extend(chunk)
+    return bytes(buf)
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--pretrained_model", required=True)
+    parser.add_argument("--chan", type=int, default=0)
+    parser.add_argument("--chan2", type=int, default=0)
+    parser.add_argument("--diameter", type=float, default=0)
+    parser.add_argument("--flow_threshold", type=float, default=0.4)
+    parser.add_argument("--mask_threshold", type=float, default=0.0)
+    parser.add_argument("--version", default="0.7")
+    parser.add_argument("--omni", action="store_true")
+    parser.add_argument("--cluster", action="store_true")
+    parser.add_argument("--use_gpu", action="store_true")
+    args = parser.parse_args()
+
+    out = sys.stdout.buffer
+    inp = sys.stdin.buffer
+    # Keep library prints away from the protocol stream
+    sys.stdout = sys.stderr
+
+    from cellpose import models
+    model = models.CellposeModel(gpu=args.use_gpu, pretrained_model=args.pretrained_model, omni=args.omni)
+    eval_args = dict(channels=[args.chan, args.chan2], diameter=args.diameter, flow_threshold=args.flow_threshold,
+                     omni=args.omni, cluster=args.cluster)
+    if args.version in ("0.7", "1.0"):
+        eval_args["mask_threshold"] = args.mask_threshold
+    else:
+        eval_args["cellprob_threshold"] = args.mask_threshold
+
+    out.write(b"READY\n")
+    out.flush()
+
+    while True:
+        line = inp.readline()
+        if not line:
+            break
+        cmd = line.decode("utf-8").split(None, 3)
+        if not cmd:
+            continue
+        if cmd[0] == "QUIT":
+            break
+        elif cmd[0] == "PING":
+            out.write(b"PONG\n")
+        elif cmd[0] == "SEGMENT":
+            width, height = int(cmd[1]), int(cmd[2])
+            img = np.frombuffer(read_exact(inp, width * height * 4), dtype="<f4").reshape(height, width)
+            try:
+                masks = model.eval(img, **eval_args)[0]
+                out.write(("MASK %d %d\n" % (width, height)).encode("ascii"))
+                out.write(np.ascontiguousarray(masks, dtype="<u2").tobytes())
+            except Exception as e:
+                out.write(("ERROR %s\n" % str(e).replace("\n", " ")).encode("ascii", "replace"))
+        elif cmd[0] == "SEGMENTMAP":
+            width, height, path = int(cmd[1]), int(cmd[2]), cmd[3].strip()
+            try:
+                shared = np.memmap(path, dtype="<f4", mode="r+", shape=(height, width))
+                img = np.array(shared)
+                masks = model.eval(img, **eval_args)[0]
+                labels = np.memmap(path, dtype="<u2", mode="r+", shape=(height, width))
+                labels[:] = masks
+                labels.flush()
+                del shared, labels
+                out.write(("MASKMAP %d %d\n" % (width, height)).encode("ascii"))
+            except Exception as e:
+                out.write(("ERROR %s\n" % str(e).replace("\n", " ")).encode("ascii", "replace"))
+        else:
+            out.write(("ERROR unknown command %s\n" % cmd[0]).encode("ascii", "replace"))
+        out.flush()
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,119 @@
+package DNA_In_Border_Bacteria.Cellpose;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Worker protocol (READY, PING, SEGMENT, SEGMENTMAP) and restarts, with CellposeStubWorker as the worker process
+ * @author Orion-CIRB
+ */
+public class CellposeWorkerTest {
+
+    private CellposeWorker worker;
+
+
+    @Before
+    public void setUp() {
+        System.setProperty("java.awt.headless", "true");
+        worker = new CellposeWorker(new CellposeTaskSettings("stub", 1, 0, "").setEnvType("stub"));
+    }
+
+
+    @After
+    public void tearDown() {
+        worker.close();
+    }
+
+
+    /**
+     * Image with three bright rods on a dark background
+     */
+    private static ImagePlus image() {
+        ShortProcessor ip = new ShortProcessor(64, 48);
+        ip.setValue(100);
+        ip.fill();
+        ip.setValue(1000);
+        for (int b = 0; b < 3; b++) {
+            ip.setRoi(4 + b*20, 10 + b*8, 12, 5);
+            ip.fill();
+        }
+        ip.resetRoi();
+        return(new ImagePlus("rods", ip));
+    }
+
+
+    private static void checkMask(ImagePlus mask) {
+        ImageProcessor ip = mask.getProcessor();
+        assertEquals(64, ip.getWidth());
+        assertEquals(48, ip.getHeight());
+        assertEquals(3, (int) ip.getStatistics().max);
+        assertEquals(0, ip.get(0, 0));
+        assertEquals(1, ip.get(4, 10));
+        assertEquals(3, ip.get(44 + 11, 26 + 4));
+    }
+
+
+    @Test
+    public void startAndPing() throws IOException {
+        assertFalse(worker.isAlive());
+        worker.start();
+        assertTrue(worker.isAlive());
+        worker.close();
+        assertFalse(worker.isAlive());
+    }
+
+
+    @Test
+    public void segmentOnPipe() throws IOException {
+        worker.setSharedMemory(false);
+        checkMask(worker.segment(image()));
+        // Buffers are reused by the next request
+        checkMask(worker.segment(image()));
+    }
+
+
+    @Test
+    public void segmentInSharedMemory() throws IOException {
+        worker.setSharedMemory(true);
+        checkMask(worker.segment(image()));
+        checkMask(worker.segment(image()));
+    }
+
+
+    @Test
+    public void restartAfterKill() throws Exception {
+        worker.setMaxRestarts(1);
+        checkMask(worker.segment(image()));
+        worker.process.destroyForcibly().waitFor();
+        checkMask(worker.segment(image()));
+        assertTrue(worker.isAlive());
+
+        // Restarts are counted again after a successful request
+        worker.process.destroyForcibly().waitFor();
+        checkMask(worker.segment(image()));
+        assertTrue(worker.isRunning());
+    }
+
+
+    @Test
+    public void noRestartLeft() throws Exception {
+        worker.setMaxRestarts(0);
+        checkMask(worker.segment(image()));
+        worker.process.destroyForcibly().waitFor();
+        try {
+            worker.segment(image());
+            fail("worker restarted more than maxRestarts times");
+        } catch (IOException e) {
+            assertFalse(worker.isRunning());
+        }
+    }
+}
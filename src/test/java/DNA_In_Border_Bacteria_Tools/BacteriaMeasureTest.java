@@ -0,0 +1,252 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import mcib3d.geom2.Object3DComputation;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DIntLabelImage;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+import mcib3d.geom2.measurements.MeasureFeret;
+import mcib3d.geom2.measurements.MeasureIntensity;
+import mcib3d.geom2.measurements.MeasureVolume;
+import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.processing.FastFilters3D;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * BacteriaMeasure gives the same measurements as the former per-bacterium mcib3d computation
+ * (MeasureVolume, MeasureFeret, erosion with a FastFilters3D MIN filter and MeasureIntensity)
+ * and its distance map splits inside and edge pixels as that erosion did
+ * @author Orion-CIRB
+ */
+public class BacteriaMeasureTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final double TOLERANCE = 1e-5;
+
+    private Calibration cal;
+
+
+    @Before
+    public void setUp() {
+        System.setProperty("java.awt.headless", "true");
+        cal = new Calibration();
+        cal.pixelWidth = 0.065;
+        cal.pixelHeight = 0.065;
+        cal.setUnit("micron");
+    }
+
+
+    /**
+     * Label image of n rod-shaped bacteria at random positions and angles, touching each other
+     * and the image borders, later rods drawn over earlier ones
+     */
+    static ShortProcessor rods(Random random, int width, int height, int n) {
+        ShortProcessor labels = new ShortProcessor(width, height);
+        for (int l = 1; l <= n; l++) {
+            double cx = random.nextDouble()*width, cy = random.nextDouble()*height;
+            double half = 5 + random.nextDouble()*15, r = 2 + random.nextDouble()*4;
+            double angle = random.nextDouble()*Math.PI;
+            double ux = Math.cos(angle), uy = Math.sin(angle);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    // Distance to the rod axis segment
+                    double t = Math.max(-half, Math.min(half, (x - cx)*ux + (y - cy)*uy));
+                    double dx = x - cx - t*ux, dy = y - cy - t*uy;
+                    if (dx*dx + dy*dy <= r*r)
+                        labels.set(x, y, l);
+                }
+            }
+        }
+        return(labels);
+    }
+
+
+    static ShortProcessor intensity(Random random, int width, int height) {
+        ShortProcessor ip = new ShortProcessor(width, height);
+        for (int i = 0; i < width*height; i++)
+            ip.set(i, 100 + random.nextInt(4000));
+        return(ip);
+    }
+
+
+    static int[] intLabels(ShortProcessor labels) {
+        short[] pixels = (short[]) labels.getPixels();
+        int[] ints = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++)
+            ints[i] = pixels[i] & 0xffff;
+        return(ints);
+    }
+
+
+    /**
+     * Former erosion of a bacterium, in its cropped label image
+     */
+    static Object3DInt erode(Object3DInt bact, float radius, Calibration cal) {
+        ImageHandler labelImage = new Object3DIntLabelImage(bact).getCroppedLabelImage(1, 1, 0, 1, false);
+        ImageHandler eroded = FastFilters3D.filterImage(labelImage, FastFilters3D.MIN, radius, radius, 0, 0, true);
+        eroded.setOffset(labelImage);
+        eroded.setCalibration(cal);
+        Object3DInt inside = new Object3DInt(eroded);
+        inside.setLabel(bact.getLabel());
+        return(inside);
+    }
+
+
+    private void compare(long seed, int n, float radius) {
+        Random random = new Random(seed);
+        ShortProcessor labels = rods(random, WIDTH, HEIGHT, n);
+        ShortProcessor dna = intensity(random, WIDTH, HEIGHT);
+        int maxLabel = (int) labels.getStatistics().max;
+
+        BacteriaMeasure measure = new BacteriaMeasure(intLabels(labels), WIDTH, HEIGHT, maxLabel);
+        measure.measure(dna, radius);
+
+        ImagePlus imgLabels = new ImagePlus("labels", labels);
+        imgLabels.setCalibration(cal);
+        ImagePlus imgDna = new ImagePlus("dna", dna);
+        imgDna.setCalibration(cal);
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgLabels));
+        int measured = 0;
+        for (int label = 1; label <= maxLabel; label++)
+            if (measure.area[label] > 0)
+                measured++;
+        assertEquals("seed " + seed + " bacteria", pop.getNbObjects(), measured);
+
+        double pixelArea = cal.pixelWidth*cal.pixelHeight*cal.pixelDepth;
+        for (Object3DInt bact : pop.getObjects3DInt()) {
+            int label = (int) bact.getLabel();
+            String msg = "seed " + seed + " label " + label;
+            double bactSurf = new MeasureVolume(bact).getValueMeasurement(MeasureVolume.VOLUME_UNIT);
+            assertEquals(msg + " area", bactSurf, measure.area[label]*pixelArea, TOLERANCE*bactSurf);
+
+            MeasureFeret feret = new MeasureFeret(bact);
+            VoxelInt feret1 = feret.getFeret1Unit();
+            VoxelInt feret2 = feret.getFeret2Unit();
+            double bactLength = feret1.distance(feret2)*cal.pixelWidth;
+            assertEquals(msg + " length", bactLength, measure.feret[label]*cal.pixelWidth, TOLERANCE*Math.max(bactLength, 1));
+
+            Object3DInt bactInside = erode(bact, radius, cal);
+            Object3DInt bactBorder = new Object3DComputation(bact).getObjectSubtracted(bactInside);
+            double volInside = new MeasureVolume(bactInside).getValueMeasurement(MeasureVolume.VOLUME_UNIT);
+            assertEquals(msg + " inside area", volInside, measure.insideArea[label]*pixelArea, TOLERANCE*Math.max(volInside, 1));
+            if (volInside == 0)
+                continue;
+            double insideInt = new MeasureIntensity(bactInside, ImageHandler.wrap(imgDna)).getValueMeasurement(MeasureIntensity.INTENSITY_AVG);
+            double borderInt = new MeasureIntensity(bactBorder, ImageHandler.wrap(imgDna)).getValueMeasurement(MeasureIntensity.INTENSITY_AVG);
+            assertEquals(msg + " inside mean", insideInt, measure.insideSum[label]/measure.insideArea[label], TOLERANCE*insideInt);
+            assertEquals(msg + " edge mean", borderInt, measure.borderSum[label]/(measure.area[label] - measure.insideArea[label]), TOLERANCE*borderInt);
+        }
+    }
+
+
+    /**
+     * Pixels split as inside by the distance map are those kept by the erosion of their bacterium
+     */
+    private void compareSplit(String name, ShortProcessor labels, float radius) {
+        int width = labels.getWidth(), height = labels.getHeight();
+        int maxLabel = (int) labels.getStatistics().max;
+        double[] dist = new BacteriaMeasure(intLabels(labels), width, height, maxLabel).distanceMap();
+        double r2 = (double) radius*radius;
+
+        ImagePlus imgLabels = new ImagePlus("labels", labels);
+        imgLabels.setCalibration(cal);
+        ImageHandler inside = ImageHandler.wrap(imgLabels).createSameDimensions();
+        for (Object3DInt bact : new Objects3DIntPopulation(ImageHandler.wrap(imgLabels)).getObjects3DInt())
+            erode(bact, radius, cal).drawObject(inside, 1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (labels.get(x, y) == 0)
+                    continue;
+                boolean expected = inside.getPixel(x, y, 0) != 0;
+                assertEquals(name + " radius " + radius + " at " + x + "," + y, expected, dist[x + y*width] / r2 > 1.0);
+            }
+        }
+    }
+
+
+    /**
+     * Rectangles and a disk, some touching the image borders
+     */
+    private static ShortProcessor shapes() {
+        ShortProcessor labels = new ShortProcessor(64, 48);
+        // Corner, full height strip and edge-touching rectangles
+        fill(labels, 1, 0, 0, 14, 12);
+        fill(labels, 2, 63, 0, 1, 48);
+        fill(labels, 3, 20, 36, 20, 12);
+        fill(labels, 4, 50, 10, 13, 30);
+        // Rectangles touching each other
+        fill(labels, 5, 18, 4, 12, 14);
+        fill(labels, 6, 30, 4, 12, 14);
+        // Disk of radius 11 at (22, 26)
+        for (int y = 0; y < 48; y++)
+            for (int x = 0; x < 64; x++)
+                if ((x-22)*(x-22) + (y-26)*(y-26) <= 11*11 && labels.get(x, y) == 0)
+                    labels.set(x, y, 7);
+        return(labels);
+    }
+
+
+    private static void fill(ShortProcessor ip, int label, int x, int y, int w, int h) {
+        for (int j = y; j < y + h; j++)
+            for (int i = x; i < x + w; i++)
+                ip.set(i, j, label);
+    }
+
+
+    @Test
+    public void splitAtRadiusBoundary() {
+        // Integer radii: pixels at distance exactly r of the background (5 is also reached by 3,4 offsets) are edges
+        for (float radius : new float[] {1, 2, 3, 5})
+            compareSplit("shapes", shapes(), radius);
+    }
+
+
+    @Test
+    public void splitAsErosion() {
+        for (float radius : new float[] {1.5f, 2.5f, 3.08f, 4})
+            for (long seed = 20; seed < 25; seed++)
+                compareSplit("seed " + seed, rods(new Random(seed), WIDTH, HEIGHT, 20), radius);
+    }
+
+
+    @Test
+    public void splitTouchingImageEdges() {
+        // Bacteria cut by the image borders are eroded from the borders
+        ShortProcessor labels = rods(new Random(30), WIDTH, HEIGHT, 30);
+        ShortProcessor cropped = new ShortProcessor(WIDTH/2, HEIGHT/2);
+        for (int y = 0; y < HEIGHT/2; y++)
+            for (int x = 0; x < WIDTH/2; x++)
+                cropped.set(x, y, labels.get(x + WIDTH/4, y + HEIGHT/4));
+        for (float radius : new float[] {1, 2, 3})
+            compareSplit("cropped", cropped, radius);
+    }
+
+
+    @Test
+    public void measureAsMcib3d() {
+        for (long seed = 0; seed < 5; seed++)
+            compare(seed, 12, 3.08f);
+    }
+
+
+    @Test
+    public void measureSmallErosion() {
+        for (long seed = 5; seed < 10; seed++)
+            compare(seed, 12, 1.5f);
+    }
+
+
+    @Test
+    public void measureCrowded() {
+        // Most bacteria lose their inside or are split by later ones
+        for (long seed = 10; seed < 13; seed++)
+            compare(seed, 60, 2f);
+    }
+}
@@ -0,0 +1,142 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImageStack;
+import ij.measure.Measurements;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Single-pass calVar against the previous implementation (duplicate, statistics, then getPixel loop over the ROI)
+ * @author Orion-CIRB
+ */
+public class Find_focused_slicesTest {
+
+    private static final int W = 67;
+    private static final int H = 45;
+    private static final Rectangle ROI = new Rectangle(9, 5, 31, 22);
+
+
+    /**
+     * Previous calVar, pixels read with getPixelValue so that float images are compared on their values
+     */
+    private static double previousCalVar(ImageProcessor ip, boolean edge) {
+        double variance = 0;
+        int W = ip.getWidth();
+        int H = ip.getHeight();
+        Rectangle r = ip.getRoi();
+        ImageProcessor edged = ip.duplicate();
+        if (edge)
+            edged.findEdges();
+        double mean = ImageStatistics.getStatistics(edged, Measurements.MEAN, null).mean;
+        double a = 0;
+        for (int y = r.y; y < (r.y + r.height); y++)
+            for (int x = r.x; x < (r.x + r.width); x++)
+                a += Math.pow(edged.getPixelValue(x, y) - mean, 2);
+        variance = (1 / (W * H * mean)) * a;
+        return(variance);
+    }
+
+
+    /**
+     * Stack of slices with a blurred random texture, sharpest in the middle
+     */
+    private static ImageStack stack(int bitDepth, int slices) {
+        Random random = new Random(bitDepth);
+        ImageStack stack = new ImageStack(W, H);
+        for (int s = 0; s < slices; s++) {
+            FloatProcessor fp = new FloatProcessor(W, H);
+            for (int i = 0; i < W*H; i++)
+                fp.setf(i, 20 + random.nextFloat() * 200);
+            fp.blurGaussian(1 + Math.abs(s - slices/2));
+            ImageProcessor ip;
+            switch (bitDepth) {
+                case 8 :
+                    ip = fp.convertToByteProcessor(false);
+                    break;
+                case 16 :
+                    fp.multiply(50);
+                    ip = fp.convertToShortProcessor(false);
+                    break;
+                default :
+                    ip = fp;
+            }
+            stack.addSlice(ip);
+        }
+        return(stack);
+    }
+
+
+    private static void compare(int bitDepth, boolean roi, boolean edge) {
+        Find_focused_slices focus = new Find_focused_slices();
+        focus.setParams(50, 0, edge, false);
+        ImageStack stack = stack(bitDepth, 5);
+        for (int s = 1; s <= stack.getSize(); s++) {
+            ImageProcessor ip = stack.getProcessor(s);
+            if (roi)
+                ip.setRoi(ROI);
+            double expected = previousCalVar(ip, edge);
+            assertEquals(bitDepth + "-bit slice " + s + (roi ? " with ROI" : "") + (edge ? " edges" : ""),
+                    expected, focus.calVar(ip), Math.abs(expected) * 1e-9);
+        }
+    }
+
+
+    @Test
+    public void byteStack() {
+        compare(8, false, false);
+        compare(8, false, true);
+    }
+
+    @Test
+    public void byteStackRoi() {
+        compare(8, true, false);
+        compare(8, true, true);
+    }
+
+    @Test
+    public void shortStack() {
+        compare(16, false, false);
+        compare(16, false, true);
+    }
+
+    @Test
+    public void shortStackRoi() {
+        compare(16, true, false);
+        compare(16, true, true);
+    }
+
+    @Test
+    public void floatStack() {
+        compare(32, false, false);
+        compare(32, false, true);
+    }
+
+    @Test
+    public void floatStackRoi() {
+        compare(32, true, false);
+        compare(32, true, true);
+    }
+
+
+    /**
+     * Parallel scoring gives the same scores, in slice order, as scoring each slice in turn
+     */
+    @Test
+    public void scoreSlices() {
+        Find_focused_slices focus = new Find_focused_slices();
+        focus.setParams(50, 0, true, false);
+        ImageStack stack = stack(16, 7);
+        double[] scores = focus.scoreSlices(stack);
+        for (int s = 1; s <= stack.getSize(); s++) {
+            double expected = previousCalVar(stack.getProcessor(s), true);
+            assertEquals("slice " + s, expected, scores[s-1], expected * 1e-9);
+        }
+    }
+}
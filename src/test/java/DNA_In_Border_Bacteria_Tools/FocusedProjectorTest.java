@@ -0,0 +1,127 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ZProjector;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * FocusedProjector gives the same pixels as ZProjector on a stack of the added planes
+ * @author Orion-CIRB
+ */
+public class FocusedProjectorTest {
+
+    private static final int W = 37;
+    private static final int H = 23;
+    private static final int[] METHODS = {ZProjector.AVG_METHOD, ZProjector.MAX_METHOD, ZProjector.SUM_METHOD};
+
+
+    @Before
+    public void setUp() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+
+    /**
+     * Stack of random pixels over the whole range of the type, so that averages need rounding
+     */
+    private static ImageStack stack(int bitDepth, int slices, long seed) {
+        Random random = new Random(seed);
+        ImageStack stack = new ImageStack(W, H);
+        for (int s = 0; s < slices; s++) {
+            ImageProcessor ip;
+            switch (bitDepth) {
+                case 8 :
+                    ip = new ByteProcessor(W, H);
+                    for (int i = 0; i < W*H; i++)
+                        ip.set(i, random.nextInt(256));
+                    break;
+                case 16 :
+                    ip = new ShortProcessor(W, H);
+                    for (int i = 0; i < W*H; i++)
+                        ip.set(i, random.nextInt(65536));
+                    break;
+                default :
+                    ip = new FloatProcessor(W, H);
+                    for (int i = 0; i < W*H; i++)
+                        ip.setf(i, (random.nextFloat() - 0.2f) * 1000);
+            }
+            stack.addSlice(ip);
+        }
+        return(stack);
+    }
+
+
+    private static ImageProcessor zProjection(ImageStack stack, int method) {
+        ZProjector zproject = new ZProjector();
+        zproject.setMethod(method);
+        zproject.setStartSlice(1);
+        zproject.setStopSlice(stack.getSize());
+        zproject.setImage(new ImagePlus("stack", stack));
+        zproject.doProjection();
+        return(zproject.getProjection().getProcessor());
+    }
+
+
+    private static void compare(int bitDepth, int slices) {
+        ImageStack stack = stack(bitDepth, slices, bitDepth*10 + slices);
+        for (int method : METHODS) {
+            String msg = bitDepth + "-bit, " + slices + " slices, method " + method;
+            FocusedProjector projector = new FocusedProjector(method, W, H);
+            for (int s = 1; s <= stack.getSize(); s++)
+                projector.add(stack.getProcessor(s));
+            assertEquals(msg + " planes", slices, projector.getCount());
+            ImageProcessor expected = zProjection(stack, method);
+            ImageProcessor actual = projector.getProjection();
+            assertEquals(msg + " bit depth", expected.getBitDepth(), actual.getBitDepth());
+            for (int i = 0; i < W*H; i++)
+                assertEquals(msg + " pixel " + i, expected.getf(i), actual.getf(i), 0);
+        }
+    }
+
+
+    @Test
+    public void byteStack() {
+        for (int slices : new int[] {1, 2, 3, 7})
+            compare(8, slices);
+    }
+
+
+    @Test
+    public void shortStack() {
+        for (int slices : new int[] {1, 2, 3, 7})
+            compare(16, slices);
+    }
+
+
+    @Test
+    public void floatStack() {
+        for (int slices : new int[] {1, 2, 3, 7})
+            compare(32, slices);
+    }
+
+
+    @Test
+    public void singleSliceIsCopied() {
+        // The projection of one plane does not share its pixels
+        ImageStack stack = stack(16, 1, 1);
+        FocusedProjector projector = new FocusedProjector(ZProjector.AVG_METHOD, W, H);
+        projector.add(stack.getProcessor(1));
+        ImageProcessor proj = projector.getProjection();
+        proj.set(0, proj.get(0) + 1);
+        assertEquals(stack.getProcessor(1).get(0) + 1, proj.get(0));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedMethod() {
+        new FocusedProjector(ZProjector.MEDIAN_METHOD, W, H);
+    }
+}
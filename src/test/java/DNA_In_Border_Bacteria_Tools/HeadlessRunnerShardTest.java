@@ -0,0 +1,145 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Shards analyzed by separate JVMs and merged give the same results table as a single run
+ * Bacteria are segmented by CellposeStubWorker, so no Omnipose environment is needed
+ * @author Orion-CIRB
+ */
+public class HeadlessRunnerShardTest {
+
+    private static final int IMAGES = 5;
+    private static final int SHARDS = 2;
+    private static final int SIZE = 96;
+    private static final int SLICES = 5;
+
+    private File tmp;
+
+
+    @Before
+    public void setUp() throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        tmp = Files.createTempDirectory("shardTest").toFile();
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmp);
+    }
+
+
+    /**
+     * Folder of 2-channel Z-stacks with rod-shaped bacteria (channel 0) holding a DNA spot (channel 1)
+     */
+    private static File fixture(File dir) {
+        dir.mkdirs();
+        for (int i = 0; i < IMAGES; i++) {
+            Random random = new Random(i);
+            ImageStack stack = new ImageStack(SIZE, SIZE);
+            int[][] rods = new int[4][];
+            for (int b = 0; b < rods.length; b++)
+                rods[b] = new int[] {10 + (b % 2) * 44 + random.nextInt(8), 10 + (b / 2) * 44 + random.nextInt(20)};
+            for (int z = 0; z < SLICES; z++) {
+                double sharpness = 1.0 / (1 + Math.abs(z - SLICES/2));
+                ShortProcessor bact = new ShortProcessor(SIZE, SIZE);
+                ShortProcessor dna = new ShortProcessor(SIZE, SIZE);
+                for (int p = 0; p < SIZE*SIZE; p++) {
+                    bact.set(p, 100 + random.nextInt(20));
+                    dna.set(p, 100 + random.nextInt(20));
+                }
+                for (int[] rod : rods) {
+                    for (int y = rod[1]; y < rod[1] + 8; y++) {
+                        for (int x = rod[0]; x < rod[0] + 30; x++) {
+                            bact.set(x, y, bact.get(x, y) + (int) (2000 * sharpness));
+                            if (Math.abs(x - rod[0] - 15) < 4 && Math.abs(y - rod[1] - 4) < 3)
+                                dna.set(x, y, dna.get(x, y) + (int) (1500 * sharpness));
+                        }
+                    }
+                }
+                stack.addSlice(bact);
+                stack.addSlice(dna);
+            }
+            ImagePlus imp = new ImagePlus("image" + i, stack);
+            imp.setDimensions(2, SLICES, 1);
+            imp.getCalibration().pixelWidth = 0.1;
+            imp.getCalibration().pixelHeight = 0.1;
+            imp.getCalibration().setUnit("micron");
+            IJ.saveAsTiff(imp, new File(dir, "image" + i + ".tif").getPath());
+        }
+        return(dir);
+    }
+
+
+    private static String[] analysisArgs(File input, File models) {
+        return(new String[] {"--input", input.getPath(), "--bacteria", "0", "--dna", "1",
+            "--omnipose-env", models.getPath(), "--omnipose-models", models.getPath(),
+            "--omnipose-env-type", "stub", "--cpu", "--threads", "2", "--overlays-every", "0", "--no-cache", "--binary"});
+    }
+
+
+    private static List<String> lines(File file) throws IOException {
+        return(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+
+    @Test
+    public void shardsMergeToSingleRun() throws Exception {
+        File models = new File(tmp, "models");
+        models.mkdirs();
+
+        // Single run
+        File single = fixture(new File(tmp, "single"));
+        assertEquals(HeadlessRunner.OK, HeadlessRunner.run(analysisArgs(single, models)));
+
+        // Each shard in its own JVM, all at once on the same folder
+        File sharded = fixture(new File(tmp, "sharded"));
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        List<File> logs = new ArrayList<>();
+        for (int s = 0; s < SHARDS; s++) {
+            List<String> cmd = new ArrayList<>(Arrays.asList(java, "-Djava.awt.headless=true",
+                    "-cp", System.getProperty("java.class.path"), HeadlessRunner.class.getName()));
+            cmd.addAll(Arrays.asList(analysisArgs(sharded, models)));
+            cmd.add("--shard");
+            cmd.add(s + "/" + SHARDS);
+            File log = new File(tmp, "shard" + s + ".log");
+            logs.add(log);
+            processes.add(new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log).start());
+        }
+        for (int s = 0; s < SHARDS; s++) {
+            Process p = processes.get(s);
+            if (!p.waitFor(5, TimeUnit.MINUTES))
+                p.destroyForcibly();
+            assertEquals("shard " + s + " exit code, log:\n" + String.join("\n", lines(logs.get(s))),
+                    HeadlessRunner.OK, p.isAlive() ? -1 : p.exitValue());
+        }
+
+        assertEquals(HeadlessRunner.OK, HeadlessRunner.run(new String[] {"--input", sharded.getPath(), "--merge", "--binary"}));
+
+        List<String> expected = lines(new File(single, "Results" + File.separator + "results.xls"));
+        assertTrue("no bacteria found in the fixture", expected.size() > IMAGES);
+        assertEquals(expected, lines(new File(sharded, "Results" + File.separator + "results.xls")));
+        assertTrue(Arrays.equals(Files.readAllBytes(new File(single, "Results" + File.separator + "results.bin").toPath()),
+                Files.readAllBytes(new File(sharded, "Results" + File.separator + "results.bin").toPath())));
+    }
+}
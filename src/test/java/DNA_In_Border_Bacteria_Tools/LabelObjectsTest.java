@@ -0,0 +1,216 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.Objects3DIntPopulationComputation;
+import mcib3d.image3d.ImageHandler;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LabelObjects holds the objects of a label image as Objects3DIntPopulation did,
+ * and keeps and relabels the same bacteria as the former mcib3d population chain
+ * @author Orion-CIRB
+ */
+public class LabelObjectsTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+
+    @Before
+    public void setUp() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+
+    /**
+     * Rods of BacteriaMeasureTest with labels spread out, leaving gaps in label numbering
+     */
+    private static ShortProcessor sparseRods(long seed, int n) {
+        Random random = new Random(seed);
+        ShortProcessor labels = BacteriaMeasureTest.rods(random, WIDTH, HEIGHT, n);
+        int[] newLabels = new int[n+1];
+        for (int l = 1; l <= n; l++)
+            newLabels[l] = newLabels[l-1] + 1 + random.nextInt(5);
+        for (int i = 0; i < WIDTH*HEIGHT; i++)
+            labels.set(i, newLabels[labels.get(i)]);
+        return(labels);
+    }
+
+
+    /**
+     * Labels image -> LabelObjects -> drawn labels gives the same image, with the objects of the mcib3d population
+     */
+    private static void compareRoundTrip(String name, ShortProcessor labels) {
+        int width = labels.getWidth(), height = labels.getHeight();
+        short[] pixels = (short[]) labels.getPixels();
+        LabelObjects objects = LabelObjects.fromLabels(pixels, width, height);
+        short[] drawn = new short[pixels.length];
+        objects.draw(drawn);
+        assertArrayEquals(name + " drawn labels", pixels, drawn);
+        assertArrayEquals(name + " label image", pixels, (short[]) objects.toLabels().getPixels());
+        int[] intDrawn = new int[pixels.length];
+        LabelObjects.fromLabels(BacteriaMeasureTest.intLabels(labels), width, height).draw(intDrawn);
+        assertArrayEquals(name + " drawn int labels", BacteriaMeasureTest.intLabels(labels), intDrawn);
+
+        // Same objects, pixel for pixel, as the population; labels missing from the image are empty objects
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(new ImagePlus("labels", labels)));
+        int nonEmpty = 0;
+        for (int l = 1; l <= objects.size(); l++)
+            if (objects.getArea(l) > 0)
+                nonEmpty++;
+        assertEquals(name + " objects", pop.getNbObjects(), nonEmpty);
+        ImageHandler imgObject = ImageHandler.wrap(new ImagePlus("object", new ShortProcessor(width, height)));
+        for (Object3DInt obj : pop.getObjects3DInt()) {
+            int l = (int) obj.getLabel();
+            assertTrue(name + " label " + l, l <= objects.size());
+            assertEquals(name + " area of " + l, (int) obj.size(), objects.getArea(l));
+            // Every pixel of the population object belongs to the object with its label
+            obj.drawObject(imgObject, 1);
+            for (int i = 0; i < pixels.length; i++) {
+                boolean inObject = imgObject.getPixel(i % width, i / width, 0) != 0;
+                assertEquals(name + " pixel " + i + " of " + l, inObject, (pixels[i] & 0xffff) == l);
+            }
+            obj.drawObject(imgObject, 0);
+        }
+    }
+
+
+    @Test
+    public void roundTrip() {
+        for (long seed = 10; seed < 15; seed++)
+            compareRoundTrip("seed " + seed, sparseRods(seed, 25));
+        compareRoundTrip("empty", new ShortProcessor(WIDTH, HEIGHT));
+    }
+
+
+    @Test
+    public void roundTripAbove16Bits() {
+        // One-pixel objects on every other pixel of every other row, more than 65535 labels
+        int width = 700, height = 400;
+        int[] labels = new int[width*height];
+        int n = 0;
+        for (int y = 1; y < height; y += 2)
+            for (int x = 1; x < width; x += 2)
+                labels[x + y*width] = ++n;
+        LabelObjects objects = LabelObjects.fromLabels(labels, width, height);
+        assertEquals(n, objects.size());
+        int[] drawn = new int[labels.length];
+        objects.draw(drawn);
+        assertArrayEquals(labels, drawn);
+        // 16-bit labels wrap back to 1 above 65535
+        short[] wrapped = new short[labels.length];
+        objects.draw(wrapped);
+        for (int i = 0; i < labels.length; i++)
+            assertEquals("wrapped label at " + i, labels[i] == 0 ? 0 : (labels[i] - 1) % 65535 + 1, wrapped[i] & 0xffff);
+    }
+
+
+    @Test
+    public void populationAfterFilter() {
+        // Filtered objects converted for the 3D ImageJ Suite
+        ShortProcessor mask = sparseRods(15, 25);
+        short[] filtered = ((short[]) mask.getPixels()).clone();
+        LabelObjects objects = LabelObjects.filterMask(filtered, WIDTH, HEIGHT, 60, 400);
+        Objects3DIntPopulation pop = objects.toPopulation(new Calibration());
+        assertEquals(objects.size(), pop.getNbObjects());
+        for (Object3DInt obj : pop.getObjects3DInt())
+            assertEquals("area of " + obj.getLabel(), objects.getArea((int) obj.getLabel()), (int) obj.size());
+        compareRoundTrip("filtered", new ShortProcessor(WIDTH, HEIGHT, filtered, null));
+    }
+
+
+    /**
+     * Former filter: exclude bacteria touching borders, filter size and reset labels, drawn in a label image
+     */
+    private static short[] mcib3dFilter(ShortProcessor mask, double min, double max) {
+        ImageHandler imgMask = ImageHandler.wrap(new ImagePlus("mask", mask.duplicate()));
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(imgMask);
+        pop = new Objects3DIntPopulationComputation(pop).getExcludeBorders(imgMask, false);
+        pop = new Objects3DIntPopulationComputation(pop).getFilterSize(min, max);
+        pop.resetLabels();
+        ImageHandler imgLabels = imgMask.createSameDimensions();
+        pop.drawInImage(imgLabels);
+        ShortProcessor labels = new ShortProcessor(mask.getWidth(), mask.getHeight());
+        for (int y = 0; y < mask.getHeight(); y++)
+            for (int x = 0; x < mask.getWidth(); x++)
+                labels.set(x, y, (int) imgLabels.getPixel(x, y, 0));
+        return((short[]) labels.getPixels());
+    }
+
+
+    private static void compareFilter(String name, ShortProcessor mask, double min, double max) {
+        short[] expected = mcib3dFilter(mask, min, max);
+        int nbExpected = 0;
+        for (short l : expected)
+            nbExpected = Math.max(nbExpected, l & 0xffff);
+
+        // Mask relabelled in place, and objects drawn back
+        short[] filtered = ((short[]) mask.getPixels()).clone();
+        LabelObjects objects = LabelObjects.filterMask(filtered, mask.getWidth(), mask.getHeight(), min, max);
+        assertEquals(name + " bacteria", nbExpected, objects.size());
+        assertArrayEquals(name + " relabelled mask", expected, filtered);
+        short[] drawn = new short[expected.length];
+        objects.draw(drawn);
+        assertArrayEquals(name + " drawn objects", expected, drawn);
+
+        // Stitched masks with int labels
+        int[] intFiltered = BacteriaMeasureTest.intLabels(mask);
+        LabelObjects intObjects = LabelObjects.filterMask(intFiltered, mask.getWidth(), mask.getHeight(), min, max);
+        assertEquals(name + " bacteria of int mask", nbExpected, intObjects.size());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(name + " relabelled int mask at " + i, expected[i] & 0xffff, intFiltered[i]);
+
+        // Same result with the separate filters
+        LabelObjects chained = LabelObjects.fromLabels((short[]) mask.getPixels(), mask.getWidth(), mask.getHeight())
+                .excludeBorders().filterSize(min, max);
+        chained.draw(drawn);
+        assertArrayEquals(name + " excludeBorders, filterSize", expected, drawn);
+    }
+
+
+    @Test
+    public void filterAsMcib3d() {
+        for (long seed = 0; seed < 5; seed++)
+            compareFilter("seed " + seed, sparseRods(seed, 25), 60, 400);
+    }
+
+
+    @Test
+    public void filterWithoutSizeLimits() {
+        for (long seed = 5; seed < 8; seed++)
+            compareFilter("seed " + seed, sparseRods(seed, 25), 0, Double.MAX_VALUE);
+    }
+
+
+    @Test
+    public void filterAtSizeLimits() {
+        // Rectangles of 20, 30 and 40 pixels kept with limits equal to their sizes, one on each border dropped
+        ShortProcessor mask = new ShortProcessor(40, 30);
+        fill(mask, 3, 2, 2, 4, 5);
+        fill(mask, 7, 10, 2, 5, 6);
+        fill(mask, 9, 20, 2, 8, 5);
+        fill(mask, 12, 2, 20, 2, 10);
+        fill(mask, 15, 0, 12, 3, 3);
+        fill(mask, 16, 37, 12, 3, 3);
+        fill(mask, 20, 12, 0, 4, 3);
+        compareFilter("limits", mask, 20, 40);
+        compareFilter("above min", mask, 21, 40);
+        compareFilter("below max", mask, 20, 39);
+    }
+
+
+    private static void fill(ShortProcessor ip, int label, int x, int y, int w, int h) {
+        for (int j = y; j < y + h; j++)
+            for (int i = x; i < x + w; i++)
+                ip.set(i, j, label);
+    }
+}
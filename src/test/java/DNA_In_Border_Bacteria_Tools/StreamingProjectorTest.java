@@ -0,0 +1,194 @@
+package DNA_In_Border_Bacteria_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.plugin.ZProjector;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streaming projection against the previous one (focused stack from Find_focused_slices.run, then ZProjector),
+ * for planes buffers of 0, 1, 3 and unbounded size
+ * @author Orion-CIRB
+ */
+public class StreamingProjectorTest {
+
+    private static final int W = 48;
+    private static final int H = 40;
+    private static final int[] BUFFERS = {0, 1, 3, Integer.MAX_VALUE};
+    private static final int[] METHODS = {ZProjector.AVG_METHOD, ZProjector.MAX_METHOD, ZProjector.SUM_METHOD};
+
+
+    @Before
+    public void setUp() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+
+    private static Find_focused_slices focus() {
+        Find_focused_slices focus = new Find_focused_slices();
+        focus.setParams(80, 0, false, false);
+        return(focus);
+    }
+
+
+    /**
+     * Stack of a random texture blurred with the given sigma per slice, lower sigmas giving higher scores
+     */
+    static ImageStack stack(int bitDepth, double[] sigmas, long seed) {
+        Random random = new Random(seed);
+        FloatProcessor texture = new FloatProcessor(W, H);
+        for (int i = 0; i < W*H; i++)
+            texture.setf(i, 20 + random.nextFloat() * 200);
+        ImageStack stack = new ImageStack(W, H);
+        for (double sigma : sigmas) {
+            FloatProcessor fp = (FloatProcessor) texture.duplicate();
+            fp.blurGaussian(sigma);
+            ImageProcessor ip;
+            switch (bitDepth) {
+                case 8 :
+                    ip = fp.convertToByteProcessor(false);
+                    break;
+                case 16 :
+                    fp.multiply(50);
+                    ip = fp.convertToShortProcessor(false);
+                    break;
+                default :
+                    ip = fp;
+            }
+            stack.addSlice(ip);
+        }
+        return(stack);
+    }
+
+
+    /**
+     * Previous projection: focused slices stack, then ZProjector
+     */
+    static ImageProcessor previousProjection(ImageStack stack, int method) {
+        ImagePlus img = new ImagePlus("stack", stack);
+        ImagePlus imgFocus = focus().run(img);
+        ZProjector zproject = new ZProjector();
+        zproject.setMethod(method);
+        zproject.setStartSlice(1);
+        zproject.setStopSlice(img.getNSlices());
+        zproject.setImage(imgFocus);
+        zproject.doProjection();
+        return(zproject.getProjection().getProcessor());
+    }
+
+
+    static void assertSamePixels(String msg, ImageProcessor expected, ImageProcessor actual) {
+        assertEquals(msg + " bit depth", expected.getBitDepth(), actual.getBitDepth());
+        for (int i = 0; i < W*H; i++)
+            assertEquals(msg + " pixel " + i, expected.getf(i), actual.getf(i), 0);
+    }
+
+
+    /**
+     * Project the stack plane by plane with each buffer size and method
+     * @return planes read again by each buffer size, for the first method
+     */
+    private static int[] compare(String name, ImageStack stack) throws Exception {
+        int[] rereads = new int[BUFFERS.length];
+        for (int m = 0; m < METHODS.length; m++) {
+            ImageProcessor expected = previousProjection(stack, METHODS[m]);
+            for (int b = 0; b < BUFFERS.length; b++) {
+                String msg = name + " " + stack.getBitDepth() + "-bit, method " + METHODS[m] + ", buffer " + BUFFERS[b];
+                StreamingProjector projector = new StreamingProjector(focus(), METHODS[m], stack.getSize(), BUFFERS[b]);
+                for (int s = 1; s <= stack.getSize(); s++)
+                    projector.add(s, stack.getProcessor(s));
+                List<Integer> read = new ArrayList<>();
+                ImagePlus proj = projector.getProjection("stack", new Calibration(), slice -> {
+                    read.add(slice);
+                    return(stack.getProcessor(slice));
+                });
+                assertSamePixels(msg, expected, proj.getProcessor());
+                assertEquals(msg + " planes read again", read.size(), projector.getRereadCount());
+                if (m == 0)
+                    rereads[b] = read.size();
+            }
+        }
+        return(rereads);
+    }
+
+
+    private static int selectedCount(ImageStack stack) {
+        Find_focused_slices focus = focus();
+        return(focus.selectSlices(focus.scoreSlices(stack)).length);
+    }
+
+
+    @Test
+    public void evictionAtMaxBuffered() throws Exception {
+        // Slices of close sharpness, most of them selected
+        double[] sigmas = {1.0, 1.05, 1.1, 1.0, 1.02, 1.08, 1.03, 1.01};
+        for (int bitDepth : new int[] {8, 16, 32}) {
+            ImageStack stack = stack(bitDepth, sigmas, bitDepth);
+            int selected = selectedCount(stack);
+            assertTrue("fixture selects more slices than the buffer holds", selected > 3);
+            int[] rereads = compare("close slices", stack);
+            // Nothing buffered: every selected plane is read again; unbounded: none
+            assertEquals(bitDepth + "-bit, buffer 0", selected, rereads[0]);
+            assertEquals(bitDepth + "-bit, buffer 1", selected - 1, rereads[1]);
+            assertEquals(bitDepth + "-bit, buffer 3", selected - 3, rereads[2]);
+            assertEquals(bitDepth + "-bit, unbounded", 0, rereads[3]);
+        }
+    }
+
+
+    @Test
+    public void pruneWhenBestScoreRises() throws Exception {
+        // Blurred first slices fill the buffer, then sharper slices make them unselectable
+        double[] sigmas = {2.5, 2.4, 2.5, 0.6, 0.62, 0.65, 3};
+        for (int bitDepth : new int[] {8, 16, 32}) {
+            ImageStack stack = stack(bitDepth, sigmas, 10 + bitDepth);
+            assertEquals("fixture selects the sharp slices only", 3, selectedCount(stack));
+            int[] rereads = compare("rising score", stack);
+            assertEquals(bitDepth + "-bit, buffer 3", 0, rereads[2]);
+            assertEquals(bitDepth + "-bit, buffer 1", 2, rereads[1]);
+
+            // Blurred planes are dropped from the buffer as soon as the first sharp one comes
+            StreamingProjector projector = new StreamingProjector(focus(), ZProjector.AVG_METHOD, stack.getSize(), Integer.MAX_VALUE);
+            for (int s = 1; s <= 3; s++)
+                projector.add(s, stack.getProcessor(s));
+            assertEquals(bitDepth + "-bit, blurred planes buffered", 3, projector.getBufferedCount());
+            projector.add(4, stack.getProcessor(4));
+            assertEquals(bitDepth + "-bit, planes buffered after the sharp one", 1, projector.getBufferedCount());
+        }
+    }
+
+
+    @Test
+    public void rereadDroppedPlanes() throws Exception {
+        // Best slice in the middle, selected slices before it come out after it, as in the focused stack
+        double[] sigmas = {1.15, 1.05, 1.0, 0.95, 1.0, 1.1, 1.2, 4};
+        for (int bitDepth : new int[] {8, 16, 32}) {
+            ImageStack stack = stack(bitDepth, sigmas, 20 + bitDepth);
+            int selected = selectedCount(stack);
+            assertTrue("fixture selects several slices", selected > 3);
+            int[] rereads = compare("middle best", stack);
+            assertEquals(bitDepth + "-bit, buffer 0", selected, rereads[0]);
+        }
+    }
+
+
+    @Test
+    public void singleSelectedSlice() throws Exception {
+        // One sharp slice: sum is 32-bit as with ZProjector
+        double[] sigmas = {3, 3, 0.5, 3};
+        for (int bitDepth : new int[] {8, 16, 32}) {
+            ImageStack stack = stack(bitDepth, sigmas, 30 + bitDepth);
+            assertEquals("fixture selects one slice", 1, selectedCount(stack));
+            compare("single slice", stack);
+        }
+    }
+}